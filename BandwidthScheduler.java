@@ -0,0 +1,334 @@
+package rkayyo;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares one direction of bandwidth (and the disk I/O behind it) between peers. There is one
+ * scheduler for uploads and one for downloads, each with an optional global token bucket and
+ * optional per-peer token buckets, configured at runtime with the {@code limit} and {@code
+ * weight} commands.
+ *
+ * Traffic comes in two priority classes ({@link TrafficClass}), chosen by the command a stream is
+ * serving rather than by the size of a write. Interactive traffic (command lines, listings,
+ * search results, consent replies) is charged to the buckets but never waits, so a request gets
+ * through immediately however busy the link is; bulk traffic pays off the debt. Bulk traffic
+ * (file payloads) is granted {@link #QUANTUM} bytes at a time in start-time fair queuing order:
+ * each grant is tagged with a virtual finish time of {@code max(virtual time, peer's last tag) +
+ * bytes / weight}, and the waiting grant with the smallest tag whose peer bucket has tokens goes
+ * next. A peer with weight 3 therefore gets three times the share of a peer with weight 1 when
+ * both are busy.
+ *
+ * With no limits set nothing is shaped and both calls return without taking a lock. The state
+ * kept for a peer without a limit or weight of its own is dropped once the peer has been idle
+ * for {@link #IDLE_NANOS}, so a long-running peer doesn't accumulate every address it has seen.
+ */
+class BandwidthScheduler {
+    static final BandwidthScheduler UPLOAD = new BandwidthScheduler("upload");
+    static final BandwidthScheduler DOWNLOAD = new BandwidthScheduler("download");
+
+    /** Priority class of a stream's traffic, set by the command handler using the stream. */
+    enum TrafficClass {
+        /** Command lines, listings, search results and consent replies: charged, never kept waiting. */
+        INTERACTIVE,
+        /** File payloads: paced in fair-queuing order and sent after any waiting interactive traffic. */
+        BULK
+    }
+
+    static final int QUANTUM = 64 * 1024;
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final String direction;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Bucket global = new Bucket();
+    private final Map<InetAddress, PeerState> peers = new ConcurrentHashMap<>();
+    private final TreeSet<Waiter> waiting = new TreeSet<>(
+            Comparator.comparingDouble((Waiter w) -> w.finish).thenComparingLong(w -> w.sequence));
+    private volatile boolean shaping;
+    private double virtualTime;
+    private long sequence;
+    private long sweptAt = System.nanoTime();
+
+    /** A token bucket refilled at {@code rate} bytes per second; a rate of 0 means unlimited. */
+    private static final class Bucket {
+        long rate;
+        double tokens;
+        long refilledAt = System.nanoTime();
+
+        boolean isLimited() {
+            return rate > 0;
+        }
+
+        void setRate(long rate) {
+            refill(System.nanoTime());
+            this.rate = rate;
+            tokens = Math.min(tokens, burst());
+        }
+
+        /** A quarter of a second's worth, but at least one quantum so a grant can always start. */
+        double burst() {
+            return Math.max(rate / 4.0, QUANTUM);
+        }
+
+        void refill(long now) {
+            if (isLimited()) {
+                tokens = Math.min(burst(), tokens + rate * ((now - refilledAt) / 1e9));
+            }
+            refilledAt = now;
+        }
+
+        /** Nanoseconds until the bucket has tokens again; 0 if it has some now. */
+        long delay(long now) {
+            if (!isLimited()) {
+                return 0;
+            }
+            refill(now);
+            return tokens > 0 ? 0 : (long) Math.ceil(-tokens / rate * 1e9) + 1;
+        }
+
+        void take(long bytes) {
+            if (isLimited()) {
+                tokens -= bytes;
+            }
+        }
+    }
+
+    private static final class PeerState {
+        final Bucket bucket = new Bucket();
+        int weight = 1;
+        double lastFinish;
+        volatile long usedAt = System.nanoTime();
+
+        /** True if nothing was configured for the peer, so its state can be recreated at will. */
+        boolean isDefault() {
+            return !bucket.isLimited() && weight == 1;
+        }
+    }
+
+    private static final class Waiter {
+        final PeerState peer;
+        final double finish;
+        final long sequence;
+
+        Waiter(PeerState peer, double finish, long sequence) {
+            this.peer = peer;
+            this.finish = finish;
+            this.sequence = sequence;
+        }
+    }
+
+    private BandwidthScheduler(String direction) {
+        this.direction = direction;
+    }
+
+    /** Charges interactive traffic to the buckets without waiting. */
+    void interactive(InetAddress peer, long bytes) {
+        if (!shaping) {
+            return;
+        }
+        PeerState state = state(peer);
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            global.refill(now);
+            global.take(bytes);
+            state.bucket.refill(now);
+            state.bucket.take(bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the fair share of bulk traffic to {@code peer} and returns how many of the
+     * {@code wanted} bytes may be moved now: all of them when nothing is shaped, otherwise at
+     * most one quantum.
+     */
+    long bulk(InetAddress peer, long wanted) throws InterruptedIOException {
+        if (!shaping || wanted <= 0) {
+            return wanted;
+        }
+        long bytes = Math.min(wanted, QUANTUM);
+        pay(peer, bytes);
+        return bytes;
+    }
+
+    /** Waits until {@code bytes} of bulk traffic to {@code peer} are due, then charges them. */
+    void pay(InetAddress peer, long bytes) throws InterruptedIOException {
+        if (!shaping || bytes <= 0) {
+            return;
+        }
+        PeerState state = state(peer);
+        lock.lock();
+        try {
+            Waiter self = new Waiter(state, Math.max(virtualTime, state.lastFinish) + (double) bytes / state.weight, sequence++);
+            state.lastFinish = self.finish;
+            waiting.add(self);
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    long delay = MAX_WAIT_NANOS;
+                    Waiter next = null;
+                    for (Waiter candidate : waiting) {
+                        long peerDelay = candidate.peer.bucket.delay(now);
+                        if (peerDelay == 0) {
+                            next = candidate;
+                            break;
+                        }
+                        delay = Math.min(delay, peerDelay);
+                    }
+                    if (next == self) {
+                        long globalDelay = global.delay(now);
+                        if (globalDelay == 0) {
+                            global.take(bytes);
+                            state.bucket.take(bytes);
+                            virtualTime = Math.max(virtualTime, self.finish);
+                            return;
+                        }
+                        delay = Math.min(delay, globalDelay);
+                    }
+                    changed.awaitNanos(delay);
+                }
+            } finally {
+                waiting.remove(self);
+                changed.signalAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + direction + " bandwidth");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets the global limit in bytes per second; 0 removes it. */
+    void setLimit(long rate) {
+        update(() -> global.setRate(rate));
+    }
+
+    /** Sets {@code peer}'s limit in bytes per second; 0 removes it. */
+    void setLimit(InetAddress peer, long rate) {
+        update(() -> state(peer).bucket.setRate(rate));
+    }
+
+    void setWeight(InetAddress peer, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least 1");
+        }
+        update(() -> state(peer).weight = weight);
+    }
+
+    /** One line for the global limit and one per peer with a limit or a weight. */
+    List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        lock.lock();
+        try {
+            lines.add(direction + ": " + formatRate(global.rate) + (waiting.isEmpty() ? "" : ", " + waiting.size() + " waiting"));
+            for (Map.Entry<InetAddress, PeerState> entry : peers.entrySet()) {
+                PeerState state = entry.getValue();
+                if (state.bucket.isLimited() || state.weight != 1) {
+                    lines.add("  " + entry.getKey().getHostAddress() + ": " + formatRate(state.bucket.rate) +
+                              ", weight " + state.weight);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return lines;
+    }
+
+    /**
+     * Parses a rate such as {@code 500K}, {@code 10M} or {@code 1G} (bytes per second, powers of
+     * 1024). {@code off} and {@code 0} mean unlimited.
+     */
+    static long parseRate(String text) {
+        String rate = text.trim().toUpperCase();
+        if ("OFF".equals(rate)) {
+            return 0;
+        }
+        if (rate.endsWith("B/S")) {
+            rate = rate.substring(0, rate.length() - 3);
+        } else if (rate.endsWith("/S")) {
+            rate = rate.substring(0, rate.length() - 2);
+        }
+        long unit = 1;
+        char suffix = rate.isEmpty() ? ' ' : rate.charAt(rate.length() - 1);
+        if (suffix == 'K' || suffix == 'M' || suffix == 'G') {
+            unit = suffix == 'K' ? 1L << 10 : suffix == 'M' ? 1L << 20 : 1L << 30;
+            rate = rate.substring(0, rate.length() - 1);
+        }
+        double value = Double.parseDouble(rate);
+        if (value < 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new NumberFormatException("Invalid rate: " + text);
+        }
+        return (long) (value * unit);
+    }
+
+    static String formatRate(long rate) {
+        if (rate <= 0) {
+            return "unlimited";
+        }
+        if (rate >= 1L << 30) {
+            return String.format("%.1f GB/s", rate / (double) (1L << 30));
+        }
+        if (rate >= 1L << 20) {
+            return String.format("%.1f MB/s", rate / (double) (1L << 20));
+        }
+        return String.format("%.1f KB/s", rate / 1024.0);
+    }
+
+    private PeerState state(InetAddress peer) {
+        PeerState state = peers.get(peer);
+        if (state == null) {
+            evictIdle();
+            state = peers.computeIfAbsent(peer, p -> new PeerState());
+        }
+        state.usedAt = System.nanoTime();
+        return state;
+    }
+
+    /**
+     * Drops the state of idle peers that have no limit or weight, at most once per {@link
+     * #IDLE_NANOS}. It runs under the lock, which is also where limits and weights are set, so a
+     * state being configured is never dropped.
+     */
+    private void evictIdle() {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (now - sweptAt < IDLE_NANOS) {
+                return;
+            }
+            sweptAt = now;
+            peers.values().removeIf(state -> state.isDefault() && now - state.usedAt > IDLE_NANOS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void update(Runnable change) {
+        lock.lock();
+        try {
+            change.run();
+            boolean limited = global.isLimited();
+            for (PeerState state : peers.values()) {
+                limited |= state.bucket.isLimited();
+            }
+            shaping = limited;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package rkayyo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Many files in one conversation: a manifest of {@code <size> <name>} lines that is approved
+ * once, followed by every file's bytes back to back in manifest order. Names are relative to the
+ * shared directory and use {@code /} between subdirectories.
+ *
+ * Files up to {@link #SMALL_FILE} bytes are read into a shared buffer and written together, so a
+ * directory of small files costs a few large writes instead of a round trip or syscall per file.
+ * Larger files go out with {@link PeerStream#sendFile}.
+ */
+class BatchTransfer {
+    static final int SMALL_FILE = 64 * 1024;
+    private static final int PACK_BUFFER = 1024 * 1024;
+
+    /** One file of a batch. {@code path} is only set on the sending side. */
+    static final class Item {
+        final String name;
+        final long size;
+        final Path path;
+
+        Item(String name, long size, Path path) {
+            this.name = name;
+            this.size = size;
+            this.path = path;
+        }
+    }
+
+    static boolean isPattern(String name) {
+        return name.indexOf('*') >= 0 || name.indexOf('?') >= 0 || name.indexOf('[') >= 0 || name.indexOf('{') >= 0;
+    }
+
+    /**
+     * Expands names, glob patterns and directories into the regular files under {@code root} they
+     * cover, sorted by name. Hidden files and directories (including the peer's part files)
+     * are never included. Patterns that match nothing are added to {@code unmatched}.
+     */
+    static List<Item> expand(Path root, List<String> patterns, List<String> unmatched) throws IOException {
+        Map<String, Item> items = new TreeMap<>();
+        for (String pattern : patterns) {
+            int before = items.size();
+            if (isPattern(pattern)) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+                walk(root, root, items, name -> matcher.matches(root.getFileSystem().getPath(name)));
+            } else {
+                Path path = resolve(root, pattern);
+                if (path != null && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    walk(root, path, items, name -> true);
+                } else if (path != null && Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                    String name = relativeName(root, path);
+                    items.put(name, new Item(name, Files.size(path), path));
+                }
+            }
+            if (items.size() == before && unmatched != null) {
+                unmatched.add(pattern);
+            }
+        }
+        return new ArrayList<>(items.values());
+    }
+
+    /**
+     * Resolves a relative name from a peer against {@code root}, or returns null if it is absolute,
+     * hidden, or escapes {@code root}.
+     */
+    static Path resolve(Path root, String name) {
+        if (name.isEmpty() || name.startsWith("/") || name.startsWith("\\") || name.contains("\n")) {
+            return null;
+        }
+        for (String part : name.split("[/\\\\]")) {
+            if (part.startsWith(".")) {
+                return null;
+            }
+        }
+        Path path = root.resolve(name).normalize();
+        return path.startsWith(root.normalize()) && !path.equals(root.normalize()) ? path : null;
+    }
+
+    static long totalSize(List<Item> items) {
+        long total = 0;
+        for (Item item : items) {
+            total += item.size;
+        }
+        return total;
+    }
+
+    /** A short description for a consent prompt: the first few names and how many more. */
+    static String describe(List<Item> items) {
+        StringBuilder description = new StringBuilder();
+        int shown = Math.min(3, items.size());
+        for (int i = 0; i < shown; i++) {
+            description.append(i == 0 ? "" : ", ").append(items.get(i).name);
+        }
+        if (items.size() > shown) {
+            description.append(" and ").append(items.size() - shown).append(" more");
+        }
+        return description.toString();
+    }
+
+    static void writeManifest(PeerStream stream, List<Item> items) throws IOException {
+        for (Item item : items) {
+            stream.writeLine(item.size + " " + item.name);
+        }
+    }
+
+    static List<Item> readManifest(PeerStream stream, int count) throws IOException {
+        List<Item> items = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            String line = stream.readLine();
+            if (line == null) {
+                throw new EOFException("Manifest ended after " + i + " of " + count + " entries");
+            }
+            String[] fields = line.split(" ", 2);
+            if (fields.length != 2) {
+                throw new IOException("Bad manifest entry: " + line);
+            }
+            long size;
+            try {
+                size = Long.parseLong(fields[0]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad manifest entry: " + line);
+            }
+            if (size < 0) {
+                throw new IOException("Bad manifest entry: " + line);
+            }
+            items.add(new Item(fields[1], size, null));
+        }
+        return items;
+    }
+
+    /** Sends every item's bytes back to back as bulk traffic, packing small files into shared writes. */
+    static void send(PeerStream stream, List<Item> items) throws IOException {
+        stream.setTrafficClass(BandwidthScheduler.TrafficClass.BULK);
+        ByteBuffer pack = ByteBuffer.allocateDirect(PACK_BUFFER);
+        for (Item item : items) {
+            try (FileChannel file = FileChannel.open(item.path, StandardOpenOption.READ)) {
+                if (item.size > SMALL_FILE) {
+                    flush(stream, pack);
+                    stream.sendFile(file, 0, item.size);
+                    continue;
+                }
+                if (pack.remaining() < item.size) {
+                    flush(stream, pack);
+                }
+                int end = pack.position() + (int) item.size;
+                ByteBuffer slice = pack.duplicate();
+                slice.limit(end);
+                while (slice.hasRemaining()) {
+                    if (file.read(slice) < 0) {
+                        throw new EOFException(item.name + " shrank while sending");
+                    }
+                }
+                pack.position(end);
+            }
+        }
+        flush(stream, pack);
+    }
+
+    /**
+     * Receives every item into {@code staging} and moves each into place under {@code root} as
+     * soon as it is complete. Returns the number of bytes received.
+     */
+    static long receive(PeerStream stream, List<Item> items, Path root, Path staging) throws IOException {
+        stream.setTrafficClass(BandwidthScheduler.TrafficClass.BULK);
+        ByteBuffer small = ByteBuffer.allocate(SMALL_FILE);
+        long received = 0;
+        for (Item item : items) {
+            Path target = resolve(root, item.name);
+            if (target == null) {
+                throw new IOException("Refusing file name " + item.name);
+            }
+            Path part = staging.resolve(item.name + ".batch");
+            Files.createDirectories(part.getParent());
+            try (FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (item.size > SMALL_FILE) {
+                    stream.receiveFile(out, 0, item.size);
+                } else {
+                    small.clear().limit((int) item.size);
+                    stream.readFully(small);
+                    small.flip();
+                    while (small.hasRemaining()) {
+                        out.write(small);
+                    }
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(part);
+                throw e;
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            received += item.size;
+        }
+        return received;
+    }
+
+    private static void flush(PeerStream stream, ByteBuffer pack) throws IOException {
+        if (pack.position() > 0) {
+            pack.flip();
+            stream.write(pack);
+            pack.clear();
+        }
+    }
+
+    private static void walk(Path root, Path start, Map<String, Item> items, Predicate<String> filter) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return !dir.equals(start) && dir.getFileName().toString().startsWith(".")
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = relativeName(root, file);
+                if (attrs.isRegularFile() && !file.getFileName().toString().startsWith(".")
+                        && !name.contains("\n") && filter.test(name)) {
+                    items.put(name, new Item(name, attrs.size(), file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String relativeName(Path root, Path path) {
+        StringBuilder name = new StringBuilder();
+        for (Path part : root.relativize(path)) {
+            name.append(name.length() == 0 ? "" : "/").append(part);
+        }
+        return name.toString();
+    }
+}
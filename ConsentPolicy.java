@@ -0,0 +1,13 @@
+package rkayyo;
+
+import java.net.InetAddress;
+
+/**
+ * Decides whether a peer may go ahead with a request that needs consent (REQUEST_FILE,
+ * OFFER_FILE and the like). The interactive peer asks the user through its {@link ConsentQueue};
+ * a harness with nobody at the keyboard supplies its own policy to {@code JavaPeer.startServer}.
+ */
+interface ConsentPolicy {
+    /** Blocks until the request described by {@code prompt} is approved or denied. */
+    boolean approve(InetAddress peer, String prompt) throws InterruptedException;
+}
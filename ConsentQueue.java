@@ -0,0 +1,84 @@
+package rkayyo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Consent decisions waiting on the user. Every incoming REQUEST_FILE / OFFER_FILE gets its own
+ * numbered entry, so the connection that raised it waits on its own decision while other
+ * connections (LIST_FILES, other transfers) keep being served.
+ */
+class ConsentQueue {
+
+    static final class Request {
+        final int id;
+        final String prompt;
+        final CompletableFuture<Boolean> decision = new CompletableFuture<>();
+
+        Request(int id, String prompt) {
+            this.id = id;
+            this.prompt = prompt;
+        }
+    }
+
+    private final Map<Integer, Request> pending = new ConcurrentSkipListMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    /** Queues a new decision and prints its prompt. */
+    Request submit(String prompt) {
+        Request request = new Request(nextId.getAndIncrement(), prompt);
+        pending.put(request.id, request);
+        System.out.println();
+        System.out.println("[" + request.id + "] " + prompt + " (y/n, or approve/deny " + request.id + ")");
+        return request;
+    }
+
+    /** Blocks the calling connection until the user answers or the timeout expires (denied). */
+    boolean await(Request request, long timeoutSeconds) throws InterruptedException {
+        try {
+            return request.decision.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            System.out.println("[" + request.id + "] No answer within " + timeoutSeconds + "s, denied.");
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } finally {
+            pending.remove(request.id);
+        }
+    }
+
+    /** Answers the request with the given id. Returns false if it is no longer pending. */
+    boolean answer(int id, boolean approved) {
+        Request request = pending.remove(id);
+        if (request == null) {
+            return false;
+        }
+        request.decision.complete(approved);
+        return true;
+    }
+
+    /** Answers the oldest pending request, used for plain y/n replies. */
+    Request answerOldest(boolean approved) {
+        for (Request request : pending.values()) {
+            if (answer(request.id, approved)) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    List<Request> snapshot() {
+        return new ArrayList<>(pending.values());
+    }
+}
@@ -0,0 +1,427 @@
+package rkayyo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync-style delta transfer for a file the receiving side already has an older copy of.
+ *
+ * The side holding the old copy (the basis) sends a signature: for every block, a rolling weak
+ * checksum and a strong hash. The side holding the new copy slides a window over it one byte at
+ * a time, looks the rolling checksum up, confirms candidates with the strong hash, and sends
+ * {@code COPY <block> <count>} for runs found in the basis and {@code DATA <length>} followed by
+ * the raw bytes for everything else. {@code END <size> <sha256>} lets the receiver check the
+ * rebuilt file.
+ */
+class DeltaSync {
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 1 << 20;
+    /** Most blocks a signature may have: a 1 TB basis at the largest block size. */
+    private static final int MAX_BLOCKS = 1 << 20;
+    private static final int STRONG_BYTES = 16;
+
+    /** Block checksums of a basis file. */
+    static final class Signature {
+        final int blockSize;
+        final long basisSize;
+        final int[] weak;
+        final byte[][] strong;
+        private final Map<Integer, List<Integer>> byWeak = new HashMap<>();
+
+        Signature(int blockSize, long basisSize, int[] weak, byte[][] strong) {
+            this.blockSize = blockSize;
+            this.basisSize = basisSize;
+            this.weak = weak;
+            this.strong = strong;
+            for (int i = 0; i < weak.length; i++) {
+                byWeak.computeIfAbsent(weak[i], k -> new ArrayList<>(1)).add(i);
+            }
+        }
+
+        int blockLength(int block) {
+            return (int) Math.min(blockSize, basisSize - (long) block * blockSize);
+        }
+    }
+
+    /** What a delta cost on the wire versus what it reused. */
+    static final class Stats {
+        long literalBytes;
+        long copiedBytes;
+    }
+
+    /** Block size for a basis of {@code size} bytes: about the square root, as rsync does. */
+    static int blockSizeFor(long size) {
+        int root = (int) Math.min(MAX_BLOCK_SIZE, (long) Math.sqrt((double) size));
+        return Math.max(MIN_BLOCK_SIZE, Integer.highestOneBit(Math.max(1, root)));
+    }
+
+    /**
+     * Computes and sends the signature of {@code basis} (which may be null for "no copy") as bulk
+     * traffic and returns it for {@link #applyDelta}.
+     */
+    static Signature writeSignature(PeerStream stream, FileChannel basis) throws IOException {
+        stream.setTrafficClass(BandwidthScheduler.TrafficClass.BULK);
+        long size = basis == null ? 0 : basis.size();
+        int blockSize = blockSizeFor(size);
+        long blockCount = (size + blockSize - 1) / blockSize;
+        if (blockCount > MAX_BLOCKS) {
+            throw new IOException("Basis of " + size + " bytes is too large for delta sync");
+        }
+        int blocks = (int) blockCount;
+        int[] weak = new int[blocks];
+        byte[][] strong = new byte[blocks][];
+        stream.writeLine("SIGNATURE " + blockSize + " " + size + " " + blocks);
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        MessageDigest digest = sha256();
+        StringBuilder line = new StringBuilder(64);
+        for (int block = 0; block < blocks; block++) {
+            buffer.clear();
+            long position = (long) block * blockSize;
+            while (buffer.hasRemaining() && basis.read(buffer, position + buffer.position()) > 0) {
+                // Fill the block (the last one may be short).
+            }
+            byte[] bytes = buffer.array();
+            int length = buffer.position();
+            digest.update(bytes, 0, length);
+            weak[block] = weakChecksum(bytes, 0, length);
+            strong[block] = Arrays.copyOf(digest.digest(), STRONG_BYTES);
+            line.setLength(0);
+            line.append(String.format("%08x", weak[block])).append(' ');
+            appendHex(line, strong[block], STRONG_BYTES);
+            stream.writeLine(line.toString());
+        }
+        return new Signature(blockSize, size, weak, strong);
+    }
+
+    static Signature readSignature(PeerStream stream) throws IOException {
+        String header = stream.readLine();
+        String[] parts = header == null ? new String[0] : header.split(" ");
+        if (parts.length != 4 || !"SIGNATURE".equals(parts[0])) {
+            throw new IOException("Expected SIGNATURE, got: " + header);
+        }
+        int blockSize;
+        long basisSize;
+        int blocks;
+        try {
+            blockSize = Integer.parseInt(parts[1]);
+            basisSize = Long.parseLong(parts[2]);
+            blocks = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid signature header: " + header);
+        }
+        // Both sizes come from the peer, so the block count is bounded before anything is allocated.
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || basisSize < 0 || blocks > MAX_BLOCKS
+                || blocks != (basisSize + blockSize - 1) / blockSize) {
+            throw new IOException("Invalid signature header: " + header);
+        }
+        int[] weak = new int[blocks];
+        byte[][] strong = new byte[blocks][];
+        for (int i = 0; i < blocks; i++) {
+            String line = stream.readLine();
+            if (line == null || line.length() != 9 + 2 * STRONG_BYTES) {
+                throw new IOException("Truncated signature at block " + i);
+            }
+            try {
+                weak[i] = (int) Long.parseLong(line.substring(0, 8), 16);
+                strong[i] = parseHex(line.substring(9));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid signature at block " + i + ": " + line);
+            }
+        }
+        return new Signature(blockSize, basisSize, weak, strong);
+    }
+
+    /** Sends the instructions that turn the signed basis into {@code source}, as bulk traffic. */
+    static Stats writeDelta(PeerStream stream, FileChannel source, Signature signature) throws IOException {
+        stream.setTrafficClass(BandwidthScheduler.TrafficClass.BULK);
+        Stats stats = new Stats();
+        long size = source.size();
+        int blockSize = signature.blockSize;
+        MessageDigest fileDigest = sha256();
+        MessageDigest blockDigest = sha256();
+        Window window = new Window(source, blockSize, fileDigest);
+
+        long literalStart = 0;
+        int copyStart = -1;
+        int copyCount = 0;
+        long position = 0;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+
+        while (position + blockSize <= size && signature.weak.length > 0) {
+            window.ensure(position, blockSize + 1);
+            if (!rolling) {
+                int weak = weakChecksum(window.bytes, window.offset(position), blockSize);
+                a = weak & 0xffff;
+                b = weak >>> 16;
+                rolling = true;
+            }
+            int block = findBlock(signature, (b << 16) | a, window.bytes, window.offset(position), blockSize, blockDigest);
+            if (block >= 0) {
+                if (position > literalStart) {
+                    flushCopy(stream, copyStart, copyCount, stats, signature);
+                    copyCount = 0;
+                    sendLiteral(stream, source, literalStart, position - literalStart, stats);
+                }
+                if (copyCount > 0 && copyStart + copyCount == block) {
+                    copyCount++;
+                } else {
+                    flushCopy(stream, copyStart, copyCount, stats, signature);
+                    copyStart = block;
+                    copyCount = 1;
+                }
+                position += blockSize;
+                literalStart = position;
+                rolling = false;
+                continue;
+            }
+            if (position + blockSize >= size) {
+                break;
+            }
+            int out = window.bytes[window.offset(position)] & 0xff;
+            int in = window.bytes[window.offset(position + blockSize)] & 0xff;
+            a = (a - out + in) & 0xffff;
+            b = (b - blockSize * out + a) & 0xffff;
+            position++;
+        }
+
+        // The basis's last block is usually short; the source's tail can still match it.
+        int last = signature.weak.length - 1;
+        long tail = size - literalStart;
+        if (last >= 0 && tail > 0 && tail == signature.blockLength(last) && signature.blockLength(last) < blockSize) {
+            window.ensure(literalStart, (int) tail);
+            if (findBlock(signature, weakChecksum(window.bytes, window.offset(literalStart), (int) tail),
+                    window.bytes, window.offset(literalStart), (int) tail, blockDigest) == last) {
+                if (copyCount > 0 && copyStart + copyCount == last) {
+                    copyCount++;
+                } else {
+                    flushCopy(stream, copyStart, copyCount, stats, signature);
+                    copyStart = last;
+                    copyCount = 1;
+                }
+                literalStart = size;
+            }
+        }
+        flushCopy(stream, copyStart, copyCount, stats, signature);
+        if (size > literalStart) {
+            sendLiteral(stream, source, literalStart, size - literalStart, stats);
+        }
+        window.finish(size);
+        StringBuilder end = new StringBuilder("END ").append(size).append(' ');
+        appendHex(end, fileDigest.digest(), 32);
+        stream.writeLine(end.toString());
+        return stats;
+    }
+
+    /**
+     * Rebuilds the new file into {@code out} from {@code basis} and the received instructions, and
+     * checks it against the sender's hash.
+     */
+    static Stats applyDelta(PeerStream stream, FileChannel basis, Signature signature, FileChannel out) throws IOException {
+        Stats stats = new Stats();
+        long position = 0;
+        while (true) {
+            String line = stream.readLine();
+            if (line == null) {
+                throw new IOException("Delta ended early");
+            }
+            String[] parts = line.split(" ");
+            if (parts[0].equals("COPY") && parts.length == 3) {
+                long block = number(parts[1], line);
+                long count = number(parts[2], line);
+                if (basis == null || block < 0 || count <= 0 || count > signature.weak.length - block) {
+                    throw new IOException("Invalid copy instruction: " + line);
+                }
+                long from = block * signature.blockSize;
+                long length = Math.min(count * signature.blockSize, signature.basisSize - from);
+                basis.position(from);
+                long copied = 0;
+                while (copied < length) {
+                    long n = out.transferFrom(basis, position + copied, length - copied);
+                    if (n <= 0) {
+                        throw new IOException("Basis file changed during sync");
+                    }
+                    copied += n;
+                }
+                position += length;
+                stats.copiedBytes += length;
+            } else if (parts[0].equals("DATA") && parts.length == 2) {
+                long length = number(parts[1], line);
+                if (length < 0) {
+                    throw new IOException("Invalid data instruction: " + line);
+                }
+                stream.receiveFile(out, position, length);
+                position += length;
+                stats.literalBytes += length;
+            } else if (parts[0].equals("END") && parts.length == 3) {
+                if (number(parts[1], line) != position) {
+                    throw new IOException("Rebuilt " + position + " bytes, expected " + parts[1]);
+                }
+                out.truncate(position);
+                StringBuilder actual = new StringBuilder();
+                appendHex(actual, hashFile(out, position), 32);
+                if (!actual.toString().equals(parts[2])) {
+                    throw new IOException("Rebuilt file does not match the sender's copy");
+                }
+                return stats;
+            } else {
+                throw new IOException("Unexpected delta instruction: " + line);
+            }
+        }
+    }
+
+    /** Parses a number in a delta instruction; a malformed one is reported like any other bad instruction. */
+    private static long number(String value, String line) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid delta instruction: " + line);
+        }
+    }
+
+    private static int findBlock(Signature signature, int weak, byte[] bytes, int offset, int length,
+                                 MessageDigest digest) {
+        List<Integer> candidates = signature.byWeak.get(weak);
+        if (candidates == null) {
+            return -1;
+        }
+        byte[] strong = null;
+        for (int block : candidates) {
+            if (signature.blockLength(block) != length) {
+                continue;
+            }
+            if (strong == null) {
+                digest.update(bytes, offset, length);
+                strong = Arrays.copyOf(digest.digest(), STRONG_BYTES);
+            }
+            if (Arrays.equals(strong, signature.strong[block])) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private static void flushCopy(PeerStream stream, int start, int count, Stats stats, Signature signature) throws IOException {
+        if (count <= 0) {
+            return;
+        }
+        stream.writeLine("COPY " + start + " " + count);
+        long from = (long) start * signature.blockSize;
+        stats.copiedBytes += Math.min((long) count * signature.blockSize, signature.basisSize - from);
+    }
+
+    private static void sendLiteral(PeerStream stream, FileChannel source, long position, long length, Stats stats) throws IOException {
+        stream.writeLine("DATA " + length);
+        stream.sendFile(source, position, length);
+        stats.literalBytes += length;
+    }
+
+    /** rsync's rolling checksum: two 16-bit sums packed as {@code b << 16 | a}. */
+    static int weakChecksum(byte[] bytes, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = bytes[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private static byte[] hashFile(FileChannel file, long size) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            int n = file.read(buffer, position);
+            if (n <= 0) {
+                throw new IOException("Short read while hashing");
+            }
+            digest.update(buffer.array(), 0, n);
+            position += n;
+        }
+        return digest.digest();
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static void appendHex(StringBuilder out, byte[] bytes, int length) {
+        for (int i = 0; i < length; i++) {
+            out.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16)).append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+    }
+
+    static byte[] parseHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Sliding read buffer over the source. Every byte is read once, in order, and fed to the
+     * whole-file digest as it is read, so the END hash costs no extra pass.
+     */
+    private static final class Window {
+        final FileChannel file;
+        final byte[] bytes;
+        final MessageDigest digest;
+        long start;
+        int length;
+
+        Window(FileChannel file, int blockSize, MessageDigest digest) {
+            this.file = file;
+            this.bytes = new byte[Math.max(4 << 20, 4 * blockSize)];
+            this.digest = digest;
+        }
+
+        int offset(long position) {
+            return (int) (position - start);
+        }
+
+        /** Makes {@code [position, position + needed)} available, as far as the file reaches. */
+        void ensure(long position, int needed) throws IOException {
+            if (position + needed <= start + length) {
+                return;
+            }
+            int keep = (int) (start + length - position);
+            System.arraycopy(bytes, length - keep, bytes, 0, keep);
+            start = position;
+            length = keep;
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, length, bytes.length - length);
+            int n;
+            while (buffer.hasRemaining() && (n = file.read(buffer, start + buffer.position())) > 0) {
+                digest.update(bytes, buffer.position() - n, n);
+            }
+            length = buffer.position();
+        }
+
+        /** Feeds the bytes the window never reached to the digest. */
+        void finish(long size) throws IOException {
+            while (start + length < size) {
+                long end = start + length;
+                ensure(end, 1);
+                if (start + length == end) {
+                    throw new IOException("Source file shrank during sync");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package rkayyo;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Which peers have which file names, with a trigram index over the names so a search only looks
+ * at names sharing every three-letter run of the pattern's literal parts. Matching is
+ * case-insensitive; patterns with {@code *} or {@code ?} are globs over the whole name, anything
+ * else matches as a substring.
+ */
+class FileNameIndex {
+    private final Map<String, Set<String>> peersByName = new HashMap<>();
+    private final Map<String, Set<String>> namesByTrigram = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Records that {@code peerKey} no longer has {@code removed} and now has {@code added}. */
+    void update(String peerKey, Collection<String> removed, Collection<String> added) {
+        lock.writeLock().lock();
+        try {
+            for (String name : removed) {
+                Set<String> peers = peersByName.get(name);
+                if (peers != null && peers.remove(peerKey) && peers.isEmpty()) {
+                    peersByName.remove(name);
+                    for (String trigram : trigrams(name)) {
+                        Set<String> names = namesByTrigram.get(trigram);
+                        if (names != null && names.remove(name) && names.isEmpty()) {
+                            namesByTrigram.remove(trigram);
+                        }
+                    }
+                }
+            }
+            for (String name : added) {
+                Set<String> peers = peersByName.get(name);
+                if (peers == null) {
+                    peers = new HashSet<>(2);
+                    peersByName.put(name, peers);
+                    for (String trigram : trigrams(name)) {
+                        namesByTrigram.computeIfAbsent(trigram, t -> new HashSet<>()).add(name);
+                    }
+                }
+                peers.add(peerKey);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Peers known to have exactly {@code name}. */
+    Set<String> peersWith(String name) {
+        lock.readLock().lock();
+        try {
+            Set<String> peers = peersByName.get(name);
+            return peers == null ? Collections.emptySet() : new HashSet<>(peers);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Matching names, sorted, each with the peers that have it. */
+    Map<String, Set<String>> search(String pattern) {
+        Pattern regex = toRegex(pattern);
+        Map<String, Set<String>> results = new TreeMap<>();
+        lock.readLock().lock();
+        try {
+            for (String name : candidates(pattern)) {
+                if (regex.matcher(name).matches()) {
+                    results.put(name, new HashSet<>(peersByName.get(name)));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    /**
+     * The shortest posting list among the trigrams of the pattern's literal runs (every match is
+     * in it), or all names if the pattern has no literal run of three characters.
+     */
+    private Collection<String> candidates(String pattern) {
+        Collection<String> smallest = peersByName.keySet();
+        for (String literal : pattern.split("[*?]")) {
+            for (String trigram : trigrams(literal)) {
+                Set<String> names = namesByTrigram.get(trigram);
+                if (names == null) {
+                    return Collections.emptySet();
+                }
+                if (names.size() < smallest.size()) {
+                    smallest = names;
+                }
+            }
+        }
+        return smallest;
+    }
+
+    private static Set<String> trigrams(String text) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            trigrams.add(lower.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    private static Pattern toRegex(String pattern) {
+        boolean glob = pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0;
+        StringBuilder regex = new StringBuilder(glob ? "" : ".*");
+        StringBuilder literal = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        if (!glob) {
+            regex.append(".*");
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+    }
+}
@@ -2,8 +2,27 @@ package rkayyo;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.*;
-import javax.jmdns.JmDNS;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jmdns.JmmDNS;
+import javax.jmdns.NetworkTopologyEvent;
+import javax.jmdns.NetworkTopologyListener;
 import javax.jmdns.ServiceEvent;
 import javax.jmdns.ServiceInfo;
 import javax.jmdns.ServiceListener;
@@ -11,13 +30,61 @@ import javax.jmdns.ServiceListener;
 public class JavaPeer {
     private static final int PORT = 5001;
     private static final String SERVICE_TYPE = "_p2pfile._tcp.local.";
-    private static JmDNS jmdns;
+    private static final long RESOLVE_TIMEOUT_MILLIS = 3000;
+    private static final long PEER_CACHE_SAVE_SECONDS = 5;
+    private static volatile JmmDNS jmdns;
+    private static PeerCache peerCache;
     private static String sharedDir = "C:\\Users\\ryank\\OneDrive\\Documents\\CISC 468\\share_p2p_java";
-    private static final Map<String, String> discoveredPeers = new HashMap<>();
-    private static final Map<String, List<String>> peerFileLists = new HashMap<>();
+    private static final PeerRegistry registry = new PeerRegistry();
+    private static final long CATALOG_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long SEARCH_TIMEOUT_SECONDS = 5;
+    private static SharedIndex sharedIndex;
+    static JavaSTS sts;
+    private static final Set<String> legacyPeers = ConcurrentHashMap.newKeySet();
+    private static final Map<String, Grant> grants = new ConcurrentHashMap<>();
+    private static final long GRANT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final int DEFAULT_DOWNLOAD_STREAMS = 4;
+    /** Part files and journals; inside the shared directory so finished files can be renamed into place. */
+    private static final String TRANSFER_DIR = ".javapeer";
+    /** Identity key, known peers and peer cache; outside the shared directory (see {@link #defaultStateDir}). */
+    private static Path stateDir;
+    private static final SecureRandom random = new SecureRandom();
     private static final Scanner scanner = new Scanner(System.in);
-    private static volatile boolean awaitingConsent = false;
-    private static volatile String consentResponse = null;
+    private static final int MAX_CONNECTIONS = 64;
+    /** One peer may hold only a share of the connection slots, so it can't lock the others out. */
+    private static final int MAX_CONNECTIONS_PER_PEER = 16;
+    private static final int MAX_PENDING_CONSENTS_PER_PEER = 4;
+    private static final long CONSENT_TIMEOUT_SECONDS = 120;
+    /** Server side of an idle multiplexed session; longer than the client pool's, which normally closes first. */
+    private static final long MUX_IDLE_TIMEOUT_SECONDS = 300;
+    private static final Map<InetAddress, AtomicInteger> connectionsByPeer = new ConcurrentHashMap<>();
+    private static final Map<InetAddress, AtomicInteger> consentsByPeer = new ConcurrentHashMap<>();
+    private static final ConsentQueue consentQueue = new ConsentQueue();
+    private static ConsentPolicy consentPolicy = JavaPeer::askUser;
+    private static final Semaphore connectionSlots = new Semaphore(MAX_CONNECTIONS);
+    private static final ExecutorService connectionPool = Executors.newFixedThreadPool(MAX_CONNECTIONS, r -> {
+        Thread t = new Thread(r, "peer-connection");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final int MAX_STREAMS = 256;
+    private static final ExecutorService streamPool = new ThreadPoolExecutor(0, MAX_STREAMS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), r -> {
+        Thread t = new Thread(r, "peer-stream");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final SessionPool sessionPool = new SessionPool(JavaPeer::openConnection);
+    private static final ExecutorService searchPool = Executors.newFixedThreadPool(32, r -> {
+        Thread t = new Thread(r, "peer-search");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ExecutorService resolvePool = Executors.newFixedThreadPool(4, r -> {
+        Thread t = new Thread(r, "mdns-resolve");
+        t.setDaemon(true);
+        return t;
+    });
 
     public static void main(String[] args) throws InterruptedException {
         if (args.length > 0) {
@@ -30,91 +97,192 @@ public class JavaPeer {
         System.out.println("Using shared directory: " + dir.getAbsolutePath());
 
         try {
-            InetAddress localAddr = getWifiIPv4Address();
-            jmdns = JmDNS.create(localAddr);
+            startServer(dir.toPath(), PORT);
+            PeerMetrics.GLOBAL.register();
+            System.out.println("Identity fingerprint: " + sts.fingerprint());
+            startPeerCache(stateDir);
+            startDiscovery();
 
-            ServiceInfo serviceInfo = ServiceInfo.create(SERVICE_TYPE, "JavaPeer", PORT, "Secure File Sharing");
-            jmdns.registerService(serviceInfo);
-            System.out.println("Registered JavaPeer at " + localAddr.getHostAddress() + ":" + PORT);
-
-            Thread serverThread = new Thread(JavaPeer::runServer);
-            serverThread.start();
-
-            jmdns.addServiceListener(SERVICE_TYPE, new SampleListener());
-            jmdns.requestServiceInfo(SERVICE_TYPE, "PythonPeer", 1000);
-            System.out.println("Java discovery started on " + localAddr.getHostAddress());
-
-            System.out.println("Commands: list <peer>, request <peer> <filename>, send <peer> <filename>, exit");
+            System.out.println("Commands: list <peer>, request <peer> <filename|pattern|directory/>..., download <filename> [streams], send <peer> <filename|pattern|directory>..., search <pattern>, sync <peer> <filename>, push <peer> <filename>, limit [up|down] [<peer>] <rate|off>, weight <peer> <n>, stats, pending, approve <id>, deny <id>, exit");
+            System.out.print("Enter command: ");
             while (scanner.hasNextLine()) {
-                if (!awaitingConsent) {
+                String input = scanner.nextLine().trim();
+                String[] parts = input.split("\\s+");
+
+                if (parts.length == 0 || parts[0].isEmpty()) {
                     System.out.print("Enter command: ");
-                    String input = scanner.nextLine().trim();
-                    String[] parts = input.split("\\s+");
+                    continue;
+                }
 
-                    if (parts.length == 0) continue;
+                switch (parts[0].toLowerCase()) {
+                    case "y":
+                    case "n":
+                        ConsentQueue.Request answered = consentQueue.answerOldest("y".equalsIgnoreCase(parts[0]));
+                        if (answered == null) {
+                            System.out.println("Nothing is waiting for approval.");
+                        } else {
+                            System.out.println("[" + answered.id + "] " + ("y".equalsIgnoreCase(parts[0]) ? "approved" : "denied"));
+                        }
+                        break;
 
-                    switch (parts[0].toLowerCase()) {
-                        case "list":
-                            if (parts.length != 2) {
-                                System.out.println("Usage: list <peer>");
-                                break;
-                            }
-                            String listPeer = parts[1];
-                            String listPeerKey = findPeerKey(listPeer);
-                            if (listPeerKey != null) {
-                                String[] peerParts = listPeerKey.split(":");
-                                requestFileList(peerParts[0], Integer.parseInt(peerParts[1]), listPeer);
-                            } else {
-                                System.out.println("Peer not found: " + listPeer + ". Discovered peers: " + discoveredPeers.values());
+                    case "approve":
+                    case "deny":
+                        if (parts.length != 2) {
+                            System.out.println("Usage: " + parts[0].toLowerCase() + " <id>");
+                            break;
+                        }
+                        try {
+                            int id = Integer.parseInt(parts[1]);
+                            if (!consentQueue.answer(id, "approve".equalsIgnoreCase(parts[0]))) {
+                                System.out.println("No pending request with id " + id);
                             }
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid id: " + parts[1]);
+                        }
+                        break;
+
+                    case "stats":
+                        for (String line : PeerMetrics.GLOBAL.report()) {
+                            System.out.println(line);
+                        }
+                        break;
+
+                    case "limit":
+                        setLimit(parts);
+                        break;
+
+                    case "weight":
+                        if (parts.length != 3) {
+                            System.out.println("Usage: weight <peer> <n> (share of bandwidth relative to other peers; default 1)");
                             break;
+                        }
+                        setWeight(parts[1], parts[2]);
+                        break;
 
-                        case "request":
-                            if (parts.length != 3) {
-                                System.out.println("Usage: request <peer> <filename>");
-                                break;
-                            }
-                            String reqPeer = parts[1];
-                            String reqFile = parts[2];
-                            String reqPeerKey = findPeerKey(reqPeer);
-                            if (reqPeerKey != null) {
-                                String[] reqParts = reqPeerKey.split(":");
+                    case "pending":
+                        if (consentQueue.isEmpty()) {
+                            System.out.println("Nothing is waiting for approval.");
+                        }
+                        for (ConsentQueue.Request pendingRequest : consentQueue.snapshot()) {
+                            System.out.println("[" + pendingRequest.id + "] " + pendingRequest.prompt);
+                        }
+                        break;
+
+                    case "list":
+                        if (parts.length != 2) {
+                            System.out.println("Usage: list <peer>");
+                            break;
+                        }
+                        String listPeer = parts[1];
+                        String listPeerKey = findPeerKey(listPeer);
+                        if (listPeerKey != null) {
+                            String[] peerParts = listPeerKey.split(":");
+                            requestFileList(peerParts[0], Integer.parseInt(peerParts[1]), listPeer);
+                        } else {
+                            System.out.println("Peer not found: " + listPeer + ". Discovered peers: " + registry.names());
+                        }
+                        break;
+
+                    case "search":
+                        if (parts.length != 2) {
+                            System.out.println("Usage: search <pattern>");
+                            break;
+                        }
+                        searchPeers(parts[1]);
+                        break;
+
+                    case "request":
+                        if (parts.length < 3) {
+                            System.out.println("Usage: request <peer> <filename|pattern|directory/>...");
+                            break;
+                        }
+                        String reqPeer = parts[1];
+                        String reqFile = parts[2];
+                        String reqPeerKey = findPeerKey(reqPeer);
+                        if (reqPeerKey != null) {
+                            String[] reqParts = reqPeerKey.split(":");
+                            if (parts.length == 3 && !BatchTransfer.isPattern(reqFile) && !reqFile.endsWith("/")) {
                                 requestFile(reqParts[0], Integer.parseInt(reqParts[1]), reqPeer, reqFile);
                             } else {
-                                System.out.println("Peer not found: " + reqPeer + ". Discovered peers: " + discoveredPeers.values());
+                                requestBatch(reqParts[0], Integer.parseInt(reqParts[1]), reqPeer,
+                                             Arrays.asList(parts).subList(2, parts.length));
                             }
-                            break;
+                        } else {
+                            System.out.println("Peer not found: " + reqPeer + ". Discovered peers: " + registry.names());
+                        }
+                        break;
 
-                        case "send":
-                            if (parts.length != 3) {
-                                System.out.println("Usage: send <peer> <filename>");
+                    case "download":
+                        if (parts.length != 2 && parts.length != 3) {
+                            System.out.println("Usage: download <filename> [streams per peer]");
+                            break;
+                        }
+                        int streams = DEFAULT_DOWNLOAD_STREAMS;
+                        if (parts.length == 3) {
+                            try {
+                                streams = Integer.parseInt(parts[2]);
+                            } catch (NumberFormatException e) {
+                                System.out.println("Invalid stream count: " + parts[2]);
                                 break;
                             }
-                            String sendPeer = parts[1];
-                            String sendFile = parts[2];
-                            String sendPeerKey = findPeerKey(sendPeer);
-                            if (sendPeerKey != null) {
-                                String[] sendParts = sendPeerKey.split(":");
-                                sendFileWithConsent(sendParts[0], Integer.parseInt(sendParts[1]), sendPeer, sendFile);
+                        }
+                        downloadFile(parts[1], streams);
+                        break;
+
+                    case "sync":
+                    case "push":
+                        if (parts.length != 3) {
+                            System.out.println("Usage: " + parts[0].toLowerCase() + " <peer> <filename>");
+                            break;
+                        }
+                        String syncPeerKey = findPeerKey(parts[1]);
+                        if (syncPeerKey != null) {
+                            String[] syncParts = syncPeerKey.split(":");
+                            if ("sync".equalsIgnoreCase(parts[0])) {
+                                syncFile(syncParts[0], Integer.parseInt(syncParts[1]), parts[1], parts[2]);
                             } else {
-                                System.out.println("Peer not found: " + sendPeer + ". Discovered peers: " + discoveredPeers.values());
+                                pushFile(syncParts[0], Integer.parseInt(syncParts[1]), parts[1], parts[2]);
                             }
+                        } else {
+                            System.out.println("Peer not found: " + parts[1] + ". Discovered peers: " + registry.names());
+                        }
+                        break;
+
+                    case "send":
+                        if (parts.length < 3) {
+                            System.out.println("Usage: send <peer> <filename|pattern|directory>...");
                             break;
+                        }
+                        String sendPeer = parts[1];
+                        String sendFile = parts[2];
+                        String sendPeerKey = findPeerKey(sendPeer);
+                        if (sendPeerKey != null) {
+                            String[] sendParts = sendPeerKey.split(":");
+                            if (parts.length == 3 && new File(sharedDir, sendFile).isFile()) {
+                                sendFileWithConsent(sendParts[0], Integer.parseInt(sendParts[1]), sendPeer, sendFile);
+                            } else {
+                                sendBatch(sendParts[0], Integer.parseInt(sendParts[1]), sendPeer,
+                                          Arrays.asList(parts).subList(2, parts.length));
+                            }
+                        } else {
+                            System.out.println("Peer not found: " + sendPeer + ". Discovered peers: " + registry.names());
+                        }
+                        break;
 
-                        case "exit":
-                            System.out.println("Shutting down...");
-                            return;
+                    case "exit":
+                        System.out.println("Shutting down...");
+                        return;
 
-                        default:
-                            System.out.println("Unknown command. Use: list <peer>, request <peer> <filename>, send <peer> <filename>, exit");
-                    }
-                } else {
-                    consentResponse = scanner.nextLine().trim().toLowerCase();
+                    default:
+                        System.out.println("Unknown command. Use: list <peer>, request <peer> <filename|pattern|directory/>..., download <filename> [streams], send <peer> <filename|pattern|directory>..., search <pattern>, sync <peer> <filename>, push <peer> <filename>, limit [up|down] [<peer>] <rate|off>, weight <peer> <n>, stats, pending, approve <id>, deny <id>, exit");
                 }
+                System.out.print("Enter command: ");
             }
         } catch (IOException e) {
             System.out.println("Error: " + e.getMessage());
         } finally {
+            sessionPool.closeAll();
+            savePeerCache();
             if (jmdns != null) {
                 try {
                     jmdns.unregisterAllServices();
@@ -127,109 +295,266 @@ public class JavaPeer {
         }
     }
 
+    /**
+     * Loads the peers known from the last run, so they can be listed and reached before discovery
+     * finds them again, and saves the registry every few seconds while it changes.
+     */
+    private static void startPeerCache(Path stateDir) {
+        peerCache = new PeerCache(stateDir, registry);
+        int loaded = peerCache.load();
+        if (loaded > 0) {
+            System.out.println("Known peers: " + registry.names() + " (from the last run; refreshed as discovery finds them)");
+        }
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "peer-cache");
+            t.setDaemon(true);
+            return t;
+        });
+        saver.scheduleWithFixedDelay(JavaPeer::savePeerCache, PEER_CACHE_SAVE_SECONDS, PEER_CACHE_SAVE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void savePeerCache() {
+        if (peerCache == null) {
+            return;
+        }
+        try {
+            peerCache.saveIfChanged();
+        } catch (IOException e) {
+            System.out.println("Could not save the peer cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts mDNS in the background on every usable interface (JmmDNS follows interfaces as they
+     * come and go), so startup waits neither for interface scans nor for service probing; the
+     * server is already up and cached peers are already known by then.
+     */
+    private static void startDiscovery() {
+        Thread discovery = new Thread(() -> {
+            try {
+                JmmDNS mdns = JmmDNS.Factory.getInstance();
+                jmdns = mdns;
+                mdns.addNetworkTopologyListener(new InterfaceListener());
+                mdns.addServiceListener(SERVICE_TYPE, new SampleListener());
+                mdns.registerService(ServiceInfo.create(SERVICE_TYPE, "JavaPeer", PORT, "Secure File Sharing"));
+                System.out.println("Registered JavaPeer on port " + PORT);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Discovery error: " + e.getMessage());
+            }
+        }, "discovery");
+        discovery.setDaemon(true);
+        discovery.start();
+    }
+
+    /**
+     * {@code limit} shows the bandwidth limits; {@code limit [up|down] [<peer>] <rate|off>} sets
+     * the global or a peer's limit for uploads, downloads or (by default) both.
+     */
+    private static void setLimit(String[] parts) {
+        if (parts.length == 1) {
+            for (BandwidthScheduler scheduler : List.of(BandwidthScheduler.UPLOAD, BandwidthScheduler.DOWNLOAD)) {
+                for (String line : scheduler.describe()) {
+                    System.out.println(line);
+                }
+            }
+            return;
+        }
+        int next = 1;
+        List<BandwidthScheduler> schedulers = List.of(BandwidthScheduler.UPLOAD, BandwidthScheduler.DOWNLOAD);
+        if ("up".equalsIgnoreCase(parts[1]) || "down".equalsIgnoreCase(parts[1])) {
+            schedulers = List.of("up".equalsIgnoreCase(parts[1]) ? BandwidthScheduler.UPLOAD : BandwidthScheduler.DOWNLOAD);
+            next++;
+        }
+        if (parts.length - next != 1 && parts.length - next != 2) {
+            System.out.println("Usage: limit [up|down] [<peer>] <rate|off> (bytes per second, e.g. 500K, 10M)");
+            return;
+        }
+        long rate;
+        try {
+            rate = BandwidthScheduler.parseRate(parts[parts.length - 1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid rate: " + parts[parts.length - 1]);
+            return;
+        }
+        InetAddress peer = null;
+        if (parts.length - next == 2) {
+            peer = findPeerAddress(parts[next]);
+            if (peer == null) {
+                return;
+            }
+        }
+        for (BandwidthScheduler scheduler : schedulers) {
+            if (peer == null) {
+                scheduler.setLimit(rate);
+            } else {
+                scheduler.setLimit(peer, rate);
+            }
+        }
+        System.out.println((peer == null ? "Global" : parts[next]) + " limit set to " + BandwidthScheduler.formatRate(rate));
+    }
+
+    private static void setWeight(String peerName, String weightText) {
+        int weight;
+        try {
+            weight = Integer.parseInt(weightText);
+        } catch (NumberFormatException e) {
+            weight = 0;
+        }
+        if (weight < 1) {
+            System.out.println("Invalid weight: " + weightText + " (must be a whole number of at least 1)");
+            return;
+        }
+        InetAddress peer = findPeerAddress(peerName);
+        if (peer != null) {
+            BandwidthScheduler.UPLOAD.setWeight(peer, weight);
+            BandwidthScheduler.DOWNLOAD.setWeight(peer, weight);
+            System.out.println(peerName + " weight set to " + weight);
+        }
+    }
+
+    /** Resolves a discovered peer's name, or an IP address, to the address traffic is scheduled by. */
+    private static InetAddress findPeerAddress(String peerName) {
+        PeerRegistry.Peer peer = registry.find(peerName);
+        String host = peer != null ? peer.host : peerName;
+        if (peer == null && !Character.isDigit(peerName.charAt(0)) && peerName.indexOf(':') < 0) {
+            System.out.println("Peer not found: " + peerName + ". Discovered peers: " + registry.names());
+            return null;
+        }
+        try {
+            return InetAddress.getByName(host);
+        } catch (IOException e) {
+            System.out.println("Could not resolve " + host + ": " + e.getMessage());
+            return null;
+        }
+    }
+
     private static String findPeerKey(String peerName) {
-        for (Map.Entry<String, String> entry : discoveredPeers.entrySet()) {
-            if (entry.getValue().startsWith(peerName)) {
-                return entry.getKey();
+        PeerRegistry.Peer peer = registry.find(peerName);
+        return peer == null ? null : peer.key;
+    }
+
+    /**
+     * Indexes {@code dir} and starts serving it on {@code port} (0 for any free port), asking the
+     * user about requests that need consent. Peers without encryption are only served and used when
+     * the {@link JavaSTS#ALLOW_PLAIN_TEXT_PROPERTY} system property is set. Returns the bound
+     * channel; closing it stops the server.
+     */
+    static ServerSocketChannel startServer(Path dir, int port) throws IOException {
+        Path state = defaultStateDir(dir);
+        moveLegacyState(dir.resolve(TRANSFER_DIR), state);
+        return startServer(dir, state, port, JavaPeer::askUser, Boolean.getBoolean(JavaSTS.ALLOW_PLAIN_TEXT_PROPERTY));
+    }
+
+    /**
+     * Like {@link #startServer(Path, int)}, with this peer's keys kept in {@code state}, requests
+     * that need consent decided by {@code policy} and plain-text peers allowed by {@code
+     * allowPlainText}. Used by the loopback benchmark harness, which has nobody at the keyboard.
+     */
+    static ServerSocketChannel startServer(Path dir, Path state, int port, ConsentPolicy policy, boolean allowPlainText)
+            throws IOException {
+        consentPolicy = policy;
+        sharedDir = dir.toString();
+        stateDir = state;
+        sts = JavaSTS.load(state, allowPlainText);
+        if (sharedIndex != null) {
+            sharedIndex.close();
+        }
+        sharedIndex = new SharedIndex(dir);
+        sharedIndex.start();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        Thread serverThread = new Thread(() -> runServer(serverChannel), "server");
+        serverThread.start();
+        return serverChannel;
+    }
+
+    /**
+     * Where the peer serving {@code dir} keeps its state: {@code ~/.javapeer/<name>-<hash>}, named
+     * after the shared directory so peers sharing different directories have their own identities,
+     * and never inside anything that is shared.
+     */
+    static Path defaultStateDir(Path dir) {
+        Path absolute = dir.toAbsolutePath().normalize();
+        String hash;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(absolute.toString().getBytes(StandardCharsets.UTF_8));
+            hash = MerkleTree.toHex(Arrays.copyOf(digest, 6));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Path name = absolute.getFileName();
+        return Paths.get(System.getProperty("user.home"), ".javapeer", (name == null ? "root" : name.toString()) + "-" + hash);
+    }
+
+    /**
+     * Moves the identity key, known peers and peer cache that earlier versions kept inside the
+     * shared directory out to {@code state}, so the key stops being one dotfile filter away from
+     * the peers we share with. A copy already in {@code state} wins and the old one is deleted.
+     */
+    private static void moveLegacyState(Path legacyDir, Path state) throws IOException {
+        for (String name : new String[] {JavaSTS.IDENTITY_FILE, JavaSTS.KNOWN_PEERS_FILE, PeerCache.CACHE_FILE}) {
+            Path old = legacyDir.resolve(name);
+            if (!Files.exists(old)) {
+                continue;
+            }
+            JavaSTS.createPrivateDirectory(state);
+            Path moved = state.resolve(name);
+            if (Files.exists(moved)) {
+                Files.delete(old);
+            } else {
+                Files.move(old, moved);
             }
+            System.out.println("Moved " + name + " out of the shared directory to " + moved);
         }
-        return null;
     }
 
-    private static void runServer() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server listening on port " + PORT);
+    private static void runServer(ServerSocketChannel serverChannel) {
+        try (ServerSocketChannel channel = serverChannel) {
+            System.out.println("Server listening on port " + ((InetSocketAddress) channel.getLocalAddress()).getPort() +
+                               " (up to " + MAX_CONNECTIONS + " connections)");
             while (true) {
-                try (Socket clientSocket = serverSocket.accept();
-                     PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-                     BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                     OutputStream binaryOut = clientSocket.getOutputStream()) {
-
-                    String request = in.readLine();
-                    if (request == null) continue;
-
-                    if ("LIST_FILES".equals(request)) {
-                        File dir = new File(sharedDir);
-                        String[] files = dir.list();
-                        if (files != null && files.length > 0) {
-                            for (String file : files) {
-                                out.println(file);
-                            }
-                        } else {
-                            System.out.println("No files available in " + sharedDir);
-                        }
-                        out.println("END");
-                        System.out.println("Sent file list to " + clientSocket.getInetAddress());
-                    } else if (request.startsWith("REQUEST_FILE ")) {
-                        String filename = request.substring("REQUEST_FILE ".length());
-                        File file = new File(sharedDir, filename);
-                        if (file.exists() && file.isFile()) {
-                            awaitingConsent = true;
-                            System.out.print("Peer " + clientSocket.getInetAddress() + 
-                                             " requests " + filename + ". Approve? (y/n): ");
-                            while (consentResponse == null && awaitingConsent) {
-                                Thread.sleep(100);
-                            }
-                            String response = consentResponse;
-                            consentResponse = null;
-                            awaitingConsent = false;
-
-                            if ("y".equals(response)) {
-                                out.println("APPROVE " + filename);
-                                out.flush();
-                                try (FileInputStream fis = new FileInputStream(file)) {
-                                    byte[] buffer = new byte[4096];
-                                    int bytesRead;
-                                    while ((bytesRead = fis.read(buffer)) != -1) {
-                                        binaryOut.write(buffer, 0, bytesRead);
-                                    }
-                                    binaryOut.flush();
-                                }
-                                System.out.println("Sent file " + filename + " to " + clientSocket.getInetAddress());
-                            } else {
-                                out.println("DENY " + filename);
-                                out.flush();
-                                System.out.println("Denied file " + filename + " to " + clientSocket.getInetAddress());
-                            }
-                        } else {
-                            out.println("DENY " + filename);
-                            out.flush();
-                            System.out.println("File " + filename + " not found");
-                        }
-                    } else if (request.startsWith("OFFER_FILE ")) {
-                        String filename = request.substring("OFFER_FILE ".length());
-                        awaitingConsent = true;
-                        System.out.print("Peer " + clientSocket.getInetAddress() + 
-                                         " offers " + filename + ". Accept? (y/n): ");
-                        while (consentResponse == null && awaitingConsent) {
-                            Thread.sleep(100);
-                        }
-                        String response = consentResponse;
-                        consentResponse = null;
-                        awaitingConsent = false;
-
-                        if ("y".equals(response)) {
-                            out.println("ACCEPT " + filename);
-                            out.flush();
-                            File file = new File(sharedDir, filename);
-                            try (FileOutputStream fos = new FileOutputStream(file)) {
-                                byte[] buffer = new byte[4096];
-                                int bytesRead;
-                                while ((bytesRead = clientSocket.getInputStream().read(buffer)) != -1) {
-                                    fos.write(buffer, 0, bytesRead);
-                                }
-                            }
-                            System.out.println("Received file " + filename + " from " + clientSocket.getInetAddress());
-                        } else {
-                            out.println("DENY " + filename);
-                            out.flush();
-                            System.out.println("Denied file " + filename + " from " + clientSocket.getInetAddress());
-                        }
-                    }
-                } catch (IOException | InterruptedException e) {
+                SocketChannel clientChannel;
+                InetAddress peer;
+                try {
+                    clientChannel = channel.accept();
+                    clientChannel.socket().setTcpNoDelay(true);
+                    peer = ((InetSocketAddress) clientChannel.getRemoteAddress()).getAddress();
+                    PeerMetrics.GLOBAL.connectionsAccepted.increment();
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
                     System.out.println("Server error: " + e.getMessage());
-                    awaitingConsent = false;
-                    consentResponse = null;
+                    continue;
+                }
+                if (!tryAcquire(connectionsByPeer, peer, MAX_CONNECTIONS_PER_PEER)) {
+                    rejectBusy(clientChannel);
+                    continue;
+                }
+                if (!connectionSlots.tryAcquire()) {
+                    release(connectionsByPeer, peer);
+                    rejectBusy(clientChannel);
+                    continue;
+                }
+                try {
+                    connectionPool.execute(() -> {
+                        PeerMetrics.GLOBAL.connectionsActive.increment();
+                        try {
+                            handleClient(clientChannel);
+                        } finally {
+                            PeerMetrics.GLOBAL.connectionsActive.decrement();
+                            connectionSlots.release();
+                            release(connectionsByPeer, peer);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    connectionSlots.release();
+                    release(connectionsByPeer, peer);
+                    rejectBusy(clientChannel);
                 }
             }
         } catch (IOException e) {
@@ -237,32 +562,680 @@ public class JavaPeer {
         }
     }
 
+    private static void rejectBusy(SocketChannel clientChannel) {
+        PeerMetrics.GLOBAL.connectionsRejected.increment();
+        try (PeerConnection conn = new PeerConnection(clientChannel)) {
+            conn.writeLine("BUSY");
+            System.out.println("Rejected " + conn.remoteAddress() + ": too many connections");
+        } catch (IOException e) {
+            System.out.println("Server error: " + e.getMessage());
+        }
+    }
+
+    /** Counts one more use by {@code peer} unless it already has {@code limit}. */
+    private static boolean tryAcquire(Map<InetAddress, AtomicInteger> counts, InetAddress peer, int limit) {
+        AtomicInteger count = counts.computeIfAbsent(peer, p -> new AtomicInteger());
+        if (count.incrementAndGet() > limit) {
+            release(counts, peer);
+            return false;
+        }
+        return true;
+    }
+
+    private static void release(Map<InetAddress, AtomicInteger> counts, InetAddress peer) {
+        counts.computeIfPresent(peer, (p, count) -> count.decrementAndGet() == 0 ? null : count);
+    }
+
+    /**
+     * Asks the consent policy (normally the user) about a request from {@code peer}. A peer with
+     * too many questions already waiting is denied straight away, so it can't park its connections
+     * in the queue.
+     */
+    private static boolean askConsent(InetAddress peer, String prompt) throws InterruptedException {
+        if (!tryAcquire(consentsByPeer, peer, MAX_PENDING_CONSENTS_PER_PEER)) {
+            System.out.println("Denied without asking: " + peer + " already has " + MAX_PENDING_CONSENTS_PER_PEER
+                    + " requests waiting for approval");
+            PeerMetrics.GLOBAL.consentAnswered(false, System.nanoTime());
+            return false;
+        }
+        try {
+            long start = System.nanoTime();
+            boolean approved = consentPolicy.approve(peer, prompt);
+            PeerMetrics.GLOBAL.consentAnswered(approved, start);
+            return approved;
+        } finally {
+            release(consentsByPeer, peer);
+        }
+    }
+
+    /** The interactive consent policy: queues the prompt for the user and waits for the answer. */
+    private static boolean askUser(InetAddress peer, String prompt) throws InterruptedException {
+        ConsentQueue.Request request = consentQueue.submit(prompt);
+        return consentQueue.await(request, CONSENT_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * Serves one connection. A connection that opens with the PROTO 2 hello stays open for any
+     * number of framed commands; anything else is a legacy single-command connection. Unless plain
+     * text is allowed, only SECURE is served before the connection is encrypted, and legacy
+     * connections are refused.
+     */
+    private static void handleClient(SocketChannel clientChannel) {
+        try (PeerConnection conn = new PeerConnection(clientChannel)) {
+            String request = conn.readLine();
+            if (request == null) return;
+
+            if (PeerConnection.PROTOCOL_HELLO.equals(request)) {
+                conn.setFramed(true);
+                conn.writeLine(PeerConnection.PROTOCOL_HELLO);
+                while ((request = conn.readLine()) != null) {
+                    if (!conn.isSecure() && !sts.allowsPlainText() && !request.startsWith("SECURE ")) {
+                        conn.writeLine("ERROR Encryption required");
+                        System.out.println("Refused unencrypted request from " + conn.remoteAddress());
+                        continue;
+                    }
+                    if (MuxSession.MUX_HELLO.equals(request)) {
+                        conn.writeLine(MuxSession.MUX_HELLO);
+                        MuxSession session = new MuxSession(conn, JavaPeer::dispatchStream);
+                        session.closeWhenIdle(MUX_IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                        session.run();
+                        return;
+                    }
+                    if (request.startsWith("SECURE ") && !conn.isSecure()) {
+                        sts.accept(conn, request);
+                        continue;
+                    }
+                    handleRequest(conn, request);
+                }
+            } else if (sts.allowsPlainText()) {
+                handleRequest(conn, request);
+            } else {
+                conn.writeLine("ERROR Encryption required");
+                System.out.println("Refused unencrypted request from " + conn.remoteAddress());
+            }
+        } catch (IOException e) {
+            System.out.println("Server error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Serves one stream of a multiplexed session on its own thread. */
+    private static void dispatchStream(PeerStream stream) {
+        try {
+            streamPool.execute(() -> handleStream(stream));
+        } catch (RejectedExecutionException e) {
+            try (PeerStream busy = stream) {
+                busy.writeLine("BUSY");
+            } catch (IOException ignored) {
+                // The session is going away anyway.
+            }
+        }
+    }
+
+    private static void handleStream(PeerStream stream) {
+        try (PeerStream conn = stream) {
+            String request;
+            while ((request = conn.readLine()) != null) {
+                handleRequest(conn, request);
+            }
+        } catch (IOException e) {
+            System.out.println("Server error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void handleRequest(PeerStream conn, String request) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        // Every command starts out interactive; the handlers that move file data switch to bulk.
+        conn.setTrafficClass(BandwidthScheduler.TrafficClass.INTERACTIVE);
+        if ("LIST_FILES".equals(request)) {
+            List<SharedIndex.Entry> files = sharedIndex.snapshot();
+            if (files.isEmpty()) {
+                System.out.println("No files available in " + sharedDir);
+            }
+            StringBuilder list = new StringBuilder();
+            for (SharedIndex.Entry file : files) {
+                list.append(file.name).append('\n');
+            }
+            conn.writeLine(list.append("END").toString());
+            PeerMetrics.GLOBAL.listFilesServiceTime.recordMicrosSince(start);
+            System.out.println("Sent file list to " + conn.remoteAddress());
+        } else if (conn.isFramed() && request.startsWith("LIST_FILES_SINCE ")) {
+            // The version is "<epoch>:<number>" as sent in an earlier VERSION line, or 0 for none.
+            String[] token = request.substring("LIST_FILES_SINCE ".length()).split(":", 2);
+            String sinceEpoch = token.length == 2 ? token[0] : null;
+            long since;
+            try {
+                since = Long.parseLong(token[token.length - 1]);
+            } catch (NumberFormatException e) {
+                conn.writeLine("ERROR Invalid version");
+                return;
+            }
+            SharedIndex.Changes changes = sharedIndex.changesSince(sinceEpoch, since);
+            StringBuilder list = new StringBuilder("VERSION " + sharedIndex.epoch() + ":" + changes.version +
+                                                   (changes.full ? " FULL" : " DELTA") + "\n");
+            for (SharedIndex.Entry file : changes.entries) {
+                if (file.deleted) {
+                    list.append("- ").append(file.name).append('\n');
+                } else {
+                    list.append("+ ").append(file.size).append(' ').append(file.modified).append(' ').append(file.name).append('\n');
+                }
+            }
+            conn.writeLine(list.append("END").toString());
+            PeerMetrics.GLOBAL.listFilesServiceTime.recordMicrosSince(start);
+            System.out.println("Sent " + changes.entries.size() + (changes.full ? " files" : " changes") +
+                               " (version " + changes.version + ") to " + conn.remoteAddress());
+        } else if ("STATS".equals(request)) {
+            for (String line : PeerMetrics.GLOBAL.report()) {
+                conn.writeLine(line);
+            }
+            conn.writeLine("END");
+        } else if (request.startsWith("REQUEST_FILE ")) {
+            String filename = request.substring("REQUEST_FILE ".length());
+            File file = sharedFile(filename);
+            if (file != null && file.isFile()) {
+                boolean approved = askConsent(conn.remoteAddress(), "Peer " + conn.remoteAddress() +
+                                              " requests " + filename + ". Approve?");
+
+                if (approved) {
+                    long sendStart = System.nanoTime();
+                    try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        long size = fileChannel.size();
+                        conn.writeLine(conn.isFramed() ? "APPROVE " + size + " " + filename : "APPROVE " + filename);
+                        conn.sendFile(fileChannel, 0, size);
+                        PeerMetrics.GLOBAL.transferCompleted(size, sendStart);
+                    }
+                    System.out.println("Sent file " + filename + " to " + conn.remoteAddress());
+                } else {
+                    conn.writeLine("DENY " + filename);
+                    System.out.println("Denied file " + filename + " to " + conn.remoteAddress());
+                }
+            } else {
+                conn.writeLine("DENY " + filename);
+                System.out.println("File " + filename + " not found");
+            }
+        } else if (request.startsWith("OFFER_FILE ") || (conn.isFramed() && request.startsWith("OFFER_FILE_VERSION "))) {
+            // The versioned form also carries the sender's modification time, so a resumed offer
+            // never mixes the part file of an older version with the new one.
+            boolean versioned = request.startsWith("OFFER_FILE_VERSION ");
+            String filename = request.substring(request.indexOf(' ') + 1);
+            long size = -1;
+            long modified = -1;
+            if (conn.isFramed()) {
+                String[] offer = filename.split(" ", versioned ? 3 : 2);
+                if (offer.length != (versioned ? 3 : 2)) {
+                    conn.writeLine(versioned ? "ERROR Usage: OFFER_FILE_VERSION <size> <modified> <filename>"
+                                             : "ERROR Usage: OFFER_FILE <size> <filename>");
+                    return;
+                }
+                try {
+                    size = Long.parseLong(offer[0]);
+                    modified = versioned ? Long.parseLong(offer[1]) : -1;
+                } catch (NumberFormatException e) {
+                    conn.writeLine("ERROR Invalid size or modification time: " + request);
+                    return;
+                }
+                filename = offer[offer.length - 1];
+            }
+            if (sharedFile(filename) == null) {
+                conn.writeLine(conn.isFramed() ? "ERROR Bad file name " + filename : "DENY " + filename);
+                return;
+            }
+            boolean approved = askConsent(conn.remoteAddress(), "Peer " + conn.remoteAddress() + " offers " + filename +
+                                          (size >= 0 ? " (" + size + " bytes)" : "") + ". Accept?");
+
+            if (approved) {
+                File file = sharedFile(filename);
+                long receiveStart = System.nanoTime();
+                if (size >= 0) {
+                    receiveOffer(conn, filename, size, modified, file.toPath());
+                    PeerMetrics.GLOBAL.transferCompleted(size, receiveStart);
+                } else {
+                    conn.writeLine("ACCEPT " + filename);
+                    Path partFile = partialDir().resolve(filename + ".part");
+                    Files.createDirectories(partFile.getParent());
+                    try (FileChannel fileChannel = FileChannel.open(partFile, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        PeerMetrics.GLOBAL.transferCompleted(conn.receiveToEnd(fileChannel, 0), receiveStart);
+                    }
+                    moveIntoPlace(partFile, file.toPath());
+                }
+                System.out.println("Received file " + filename + " from " + conn.remoteAddress());
+            } else {
+                conn.writeLine("DENY " + filename);
+                System.out.println("Denied file " + filename + " from " + conn.remoteAddress());
+            }
+        } else if (conn.isFramed() && (request.startsWith("REQUEST_GRANT ") || request.startsWith("REQUEST_GRANT_VERIFIED "))) {
+            // The verified form also carries the file's Merkle root when it is already known ("-" if not).
+            boolean verified = request.startsWith("REQUEST_GRANT_VERIFIED ");
+            String filename = request.substring(request.indexOf(' ') + 1);
+            File file = sharedFile(filename);
+            if (file == null || !file.isFile()) {
+                conn.writeLine("DENY " + filename);
+                System.out.println("File " + filename + " not found");
+            } else if (askConsent(conn.remoteAddress(), "Peer " + conn.remoteAddress() + " requests " + filename + ". Approve?")) {
+                String token = newGrantToken();
+                Grant grant = new Grant(file, conn.remoteAddress(), treeFor(filename, file));
+                grants.put(token, grant);
+                conn.writeLine("GRANT " + token + " " + grant.tree.size + (verified ? " " + grant.tree.rootHex() : "") + " " + filename);
+                System.out.println("Granted " + filename + " to " + conn.remoteAddress());
+            } else {
+                conn.writeLine("DENY " + filename);
+                System.out.println("Denied file " + filename + " to " + conn.remoteAddress());
+            }
+        } else if (conn.isFramed() && request.startsWith("REQUEST_RANGE ")) {
+            // REQUEST_RANGE <token> <offset> <length> [VERIFY]; verified ranges send a hash after every chunk.
+            String[] range = request.split(" ");
+            boolean verify = range.length == 5 && "VERIFY".equals(range[4]);
+            Grant grant = range.length == 4 || verify ? grants.get(range[1]) : null;
+            if (grant == null || !grant.isValidFor(conn.remoteAddress())) {
+                conn.writeLine("ERROR No valid grant");
+                return;
+            }
+            long offset;
+            long length;
+            try {
+                offset = Long.parseLong(range[2]);
+                length = Long.parseLong(range[3]);
+            } catch (NumberFormatException e) {
+                conn.writeLine("ERROR Invalid range");
+                return;
+            }
+            try (FileChannel fileChannel = FileChannel.open(grant.file.toPath(), StandardOpenOption.READ)) {
+                if (offset < 0 || length < 0 || offset + length > fileChannel.size()) {
+                    conn.writeLine("ERROR Range outside file");
+                    return;
+                }
+                grant.touch();
+                if (!verify) {
+                    conn.writeLine("RANGE " + length);
+                    conn.sendFile(fileChannel, offset, length);
+                } else if (!grant.isUnchanged()) {
+                    conn.writeLine("ERROR File changed since it was granted");
+                    return;
+                } else if (!VerifiedRange.isAligned(offset, length, fileChannel.size())) {
+                    conn.writeLine("ERROR Range not aligned to " + MerkleTree.CHUNK_SIZE + "-byte chunks");
+                    return;
+                } else {
+                    conn.writeLine("VERIFIED_RANGE " + length + " " + MerkleTree.CHUNK_SIZE);
+                    VerifiedRange.send(conn, fileChannel, offset, length, grant.tree);
+                }
+                PeerMetrics.GLOBAL.rangeServed(length, start);
+            }
+        } else if (conn.isFramed() && request.startsWith("REQUEST_ROOT ")) {
+            // Merkle root of a granted file. Chunks that haven't been served yet are hashed in the
+            // background rather than on this connection; until then the root is "-" and the
+            // requester asks again.
+            Grant grant = grants.get(request.substring("REQUEST_ROOT ".length()));
+            if (grant == null || !grant.isValidFor(conn.remoteAddress())) {
+                conn.writeLine("ERROR No valid grant");
+                return;
+            }
+            if (!grant.isUnchanged()) {
+                conn.writeLine("ERROR File changed since it was granted");
+                return;
+            }
+            VerifiedRange.fillInLater(grant.file.toPath(), grant.tree);
+            grant.touch();
+            conn.writeLine("ROOT " + grant.tree.rootHex());
+        } else if (conn.isFramed() && request.startsWith("REQUEST_LEAVES ")) {
+            // Every leaf hash of a granted file, so the requester can check each chunk against it
+            // as it arrives; "LEAVES -" while they are still being hashed, as for REQUEST_ROOT.
+            Grant grant = grants.get(request.substring("REQUEST_LEAVES ".length()));
+            if (grant == null || !grant.isValidFor(conn.remoteAddress())) {
+                conn.writeLine("ERROR No valid grant");
+                return;
+            }
+            if (!grant.isUnchanged()) {
+                conn.writeLine("ERROR File changed since it was granted");
+                return;
+            }
+            VerifiedRange.fillInLater(grant.file.toPath(), grant.tree);
+            grant.touch();
+            byte[] leaves = grant.tree.leafBytes();
+            if (leaves == null) {
+                conn.writeLine("LEAVES -");
+                return;
+            }
+            conn.writeLine("LEAVES " + grant.tree.chunkCount());
+            conn.write(ByteBuffer.wrap(leaves));
+        } else if (conn.isFramed() && request.startsWith("REQUEST_BATCH ")) {
+            int count = parseCount(request.substring("REQUEST_BATCH ".length()));
+            if (count < 0) {
+                conn.writeLine("ERROR Usage: REQUEST_BATCH <count>, then one name, pattern or directory per line");
+                return;
+            }
+            List<String> patterns = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String pattern = conn.readLine();
+                if (pattern == null) {
+                    return;
+                }
+                patterns.add(pattern);
+            }
+            List<BatchTransfer.Item> items = BatchTransfer.expand(Paths.get(sharedDir), patterns, null);
+            if (items.isEmpty()) {
+                conn.writeLine("DENY No matching files");
+                System.out.println("No files match " + patterns);
+            } else if (askConsent(conn.remoteAddress(), "Peer " + conn.remoteAddress() + " requests " + items.size() + " files (" +
+                                  BatchTransfer.totalSize(items) + " bytes): " + BatchTransfer.describe(items) + ". Approve?")) {
+                conn.writeLine("MANIFEST " + items.size() + " " + BatchTransfer.totalSize(items));
+                BatchTransfer.writeManifest(conn, items);
+                long sendStart = System.nanoTime();
+                BatchTransfer.send(conn, items);
+                PeerMetrics.GLOBAL.transferCompleted(BatchTransfer.totalSize(items), sendStart);
+                System.out.println("Sent " + items.size() + " files to " + conn.remoteAddress());
+            } else {
+                conn.writeLine("DENY Request denied");
+                System.out.println("Denied " + items.size() + " files to " + conn.remoteAddress());
+            }
+        } else if (conn.isFramed() && request.startsWith("OFFER_BATCH ")) {
+            String[] offer = request.split(" ");
+            int count = offer.length == 3 ? parseCount(offer[1]) : -1;
+            if (count < 0) {
+                conn.writeLine("ERROR Usage: OFFER_BATCH <count> <total size>, then one <size> <name> line per file");
+                return;
+            }
+            List<BatchTransfer.Item> items = BatchTransfer.readManifest(conn, count);
+            for (BatchTransfer.Item item : items) {
+                if (BatchTransfer.resolve(Paths.get(sharedDir), item.name) == null) {
+                    conn.writeLine("ERROR Bad file name " + item.name);
+                    return;
+                }
+            }
+            if (askConsent(conn.remoteAddress(), "Peer " + conn.remoteAddress() + " offers " + items.size() + " files (" +
+                           BatchTransfer.totalSize(items) + " bytes): " + BatchTransfer.describe(items) + ". Accept?")) {
+                conn.writeLine("ACCEPT " + items.size());
+                long receiveStart = System.nanoTime();
+                PeerMetrics.GLOBAL.transferCompleted(BatchTransfer.receive(conn, items, Paths.get(sharedDir), partialDir()),
+                        receiveStart);
+                conn.writeLine("RECEIVED " + items.size());
+                System.out.println("Received " + items.size() + " files from " + conn.remoteAddress());
+            } else {
+                conn.writeLine("DENY Offer denied");
+                System.out.println("Denied " + items.size() + " files from " + conn.remoteAddress());
+            }
+        } else if (conn.isFramed() && request.startsWith("SYNC_FILE ")) {
+            String filename = request.substring("SYNC_FILE ".length());
+            File file = sharedFile(filename);
+            if (file == null || !file.isFile()) {
+                conn.writeLine("DENY " + filename);
+                System.out.println("File " + filename + " not found");
+            } else if (askConsent(conn.remoteAddress(), "Peer " + conn.remoteAddress() + " requests changes to " + filename + ". Approve?")) {
+                conn.writeLine("SYNC_READY " + filename);
+                DeltaSync.Signature signature = DeltaSync.readSignature(conn);
+                try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    DeltaSync.Stats stats = DeltaSync.writeDelta(conn, source, signature);
+                    System.out.println("Synced " + filename + " to " + conn.remoteAddress() + ": " + stats.literalBytes +
+                                       " bytes sent, " + stats.copiedBytes + " bytes reused");
+                }
+            } else {
+                conn.writeLine("DENY " + filename);
+                System.out.println("Denied file " + filename + " to " + conn.remoteAddress());
+            }
+        } else if (conn.isFramed() && request.startsWith("SYNC_OFFER ")) {
+            String[] offer = request.split(" ", 3);
+            if (offer.length != 3) {
+                conn.writeLine("ERROR Usage: SYNC_OFFER <size> <filename>");
+                return;
+            }
+            String filename = offer[2];
+            if (sharedFile(filename) == null) {
+                conn.writeLine("ERROR Bad file name " + filename);
+                return;
+            }
+            if (askConsent(conn.remoteAddress(), "Peer " + conn.remoteAddress() + " offers changes to " + filename + " (" + offer[1] +
+                           " bytes). Accept?")) {
+                conn.writeLine("SYNC_READY " + filename);
+                DeltaSync.Stats stats = receiveDelta(conn, filename);
+                conn.writeLine("RECEIVED " + filename);
+                System.out.println("Synced " + filename + " from " + conn.remoteAddress() + ": " + stats.literalBytes +
+                                   " bytes received, " + stats.copiedBytes + " bytes reused");
+            } else {
+                conn.writeLine("DENY " + filename);
+                System.out.println("Denied file " + filename + " from " + conn.remoteAddress());
+            }
+        } else if (conn.isFramed()) {
+            conn.writeLine("ERROR Unknown command");
+        }
+    }
+
+    /**
+     * Resolves a name from a peer inside the shared directory, or returns null if it is absolute,
+     * escapes the directory or names a hidden file such as the directory with our part files.
+     */
+    private static File sharedFile(String filename) {
+        Path path = BatchTransfer.resolve(Paths.get(sharedDir), filename);
+        return path == null ? null : path.toFile();
+    }
+
+    private static int parseCount(String count) {
+        try {
+            return Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends the signature of our copy of {@code filename} (if any), applies the delta that comes
+     * back into a scratch file and moves it over our copy once it checks out.
+     */
+    private static DeltaSync.Stats receiveDelta(PeerStream conn, String filename) throws IOException {
+        Path target = sharedFile(filename).toPath();
+        Path scratch = partialDir().resolve(filename + ".sync");
+        Files.createDirectories(scratch.getParent());
+        DeltaSync.Stats stats;
+        try (FileChannel basis = Files.isRegularFile(target) ? FileChannel.open(target, StandardOpenOption.READ) : null;
+             FileChannel out = FileChannel.open(scratch, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DeltaSync.Signature signature = DeltaSync.writeSignature(conn, basis);
+            stats = DeltaSync.applyDelta(conn, basis, signature, out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(scratch);
+            throw e;
+        }
+        moveIntoPlace(scratch, target);
+        return stats;
+    }
+
+    /**
+     * The hash tree for a file being granted: the index's cached one for an unchanged top-level
+     * file, so its leaves are only computed once, or a fresh one for anything else.
+     */
+    private static MerkleTree treeFor(String filename, File file) {
+        long size = file.length();
+        long modified = file.lastModified();
+        SharedIndex.Entry entry = sharedIndex == null ? null : sharedIndex.get(filename);
+        if (entry != null && entry.size == size && entry.modified == modified) {
+            return entry.tree();
+        }
+        return new MerkleTree(size, modified);
+    }
+
+    private static String newGrantToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        grants.values().removeIf(Grant::isExpired);
+        return token.toString();
+    }
+
+    /**
+     * Receives a framed offer segment by segment into a journaled part file. The ACCEPT reply
+     * carries the offset already on disk from an earlier attempt of the same version of the file
+     * (same size and sender modification time), and the sender resumes there. An offer without a
+     * modification time can't be told apart from an older version, so it always starts over.
+     */
+    private static void receiveOffer(PeerStream conn, String filename, long size, long modified, Path target) throws IOException {
+        String identity = modified >= 0 ? "modified " + modified : "unversioned " + UUID.randomUUID();
+        try (TransferJournal journal = TransferJournal.open(partialDir(), filename, size, SegmentedDownload.SEGMENT_SIZE, identity)) {
+            long offset = journal.verifiedOffset();
+            conn.writeLine("ACCEPT " + offset + " " + filename);
+            if (offset > 0) {
+                System.out.println("Resuming " + filename + " at byte " + offset);
+            }
+            for (int segment = (int) (offset / journal.segmentSize()); segment < journal.segmentCount(); segment++) {
+                long segmentOffset = segment * journal.segmentSize();
+                long length = Math.min(journal.segmentSize(), size - segmentOffset);
+                conn.receiveFile(journal.data(), segmentOffset, length);
+                journal.markDone(segment);
+            }
+            journal.complete(target);
+        }
+        conn.writeLine("RECEIVED " + filename);
+    }
+
+    private static Path partialDir() {
+        return Paths.get(sharedDir, TRANSFER_DIR, "partial");
+    }
+
+    private static void moveIntoPlace(Path partFile, Path target) throws IOException {
+        try {
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Fetches a file in segments from every peer that lists it (or every discovered peer when no
+     * list has been fetched yet), using several connections per peer.
+     */
+    private static void downloadFile(String filename, int streamsPerPeer) {
+        List<String> candidates = new ArrayList<>();
+        for (String peerKey : registry.peersWith(filename)) {
+            if (registry.get(peerKey) != null) {
+                candidates.add(peerKey);
+            }
+        }
+        if (candidates.isEmpty()) {
+            for (PeerRegistry.Peer peer : registry.peers()) {
+                candidates.add(peer.key);
+            }
+        }
+        candidates.removeAll(legacyPeers);
+        if (candidates.isEmpty()) {
+            System.out.println("No peers available for a segmented download of " + filename);
+            return;
+        }
+
+        Path target = new File(sharedDir, filename).toPath();
+        SegmentedDownload download = new SegmentedDownload(filename, target, partialDir(), JavaPeer::openConnection, streamsPerPeer);
+        try {
+            if (download.requestGrants(candidates) == 0) {
+                System.out.println("No peer granted " + filename);
+                return;
+            }
+            long start = System.nanoTime();
+            if (download.run()) {
+                PeerMetrics.GLOBAL.transferCompleted(download.size(), start);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println("Received file " + filename + " (" + download.size() + " bytes in "
+                        + String.format("%.2f", seconds) + "s)");
+                System.out.println("Saved file to: " + target.toAbsolutePath());
+            } else {
+                System.out.println("Download of " + filename + " did not complete");
+            }
+        } catch (IOException e) {
+            System.out.println("Error downloading file " + filename + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Opens a stream to a peer. Framed peers share one pooled, multiplexed session; legacy peers
+     * get a connection of their own.
+     */
+    private static PeerStream connect(String host, int port) throws IOException {
+        return sessionPool.open(host, port);
+    }
+
+    /**
+     * Opens a connection to a peer, using the encrypted framed protocol when the peer supports it.
+     * Peers that ignore the hello (e.g. the Python peer) are remembered and reconnected in legacy
+     * mode, if plain text is allowed and the peer's identity isn't pinned.
+     */
+    private static PeerConnection openConnection(String host, int port) throws IOException {
+        String peerKey = host + ":" + port;
+        if (!legacyPeers.contains(peerKey)) {
+            PeerConnection conn = PeerConnection.open(host, port);
+            try {
+                if (sts.connect(conn, peerKey)) {
+                    return conn;
+                }
+            } catch (IOException e) {
+                // Legacy peers may reset the connection instead of answering, but a failed handshake
+                // (e.g. a changed identity) must never turn into a plain-text connection otherwise.
+                if (!sts.permitsPlainText(peerKey)) {
+                    conn.close();
+                    throw e;
+                }
+            }
+            conn.close();
+            sts.checkPlainText(peerKey);
+            System.out.println("Warning: " + peerKey + " does not speak the framed protocol; continuing unencrypted");
+            legacyPeers.add(peerKey);
+        }
+        sts.checkPlainText(peerKey);
+        return PeerConnection.open(host, port);
+    }
+
+    /**
+     * Requests a file from one peer. Framed peers serve it through a single-stream segmented
+     * download, so an interrupted request picks up from the journaled segments next time. Legacy
+     * peers stream the whole file, which lands in a part file and is renamed once complete.
+     */
     private static void requestFile(String host, int port, String peerName, String filename) {
         String peerKey = host + ":" + port;
-        try (Socket socket = new Socket(host, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             InputStream binaryIn = socket.getInputStream()) {
-
-            out.println("REQUEST_FILE " + filename);
-            System.out.println("Requesting file " + filename + " from " + peerName + " (" + peerKey + ")");
-            String response = in.readLine();
-            if (response != null && response.startsWith("APPROVE ")) {
-                File file = new File(sharedDir, filename);
-                try (FileOutputStream fos = new FileOutputStream(file)) {
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = binaryIn.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
+        Path target = new File(sharedDir, filename).toPath();
+        System.out.println("Requesting file " + filename + " from " + peerName + " (" + peerKey + ")");
+        try {
+            if (!legacyPeers.contains(peerKey)) {
+                SegmentedDownload download = new SegmentedDownload(filename, target, partialDir(), JavaPeer::openConnection, 1);
+                if (download.requestGrants(Collections.singletonList(peerKey)) > 0) {
+                    long start = System.nanoTime();
+                    if (download.run()) {
+                        PeerMetrics.GLOBAL.transferCompleted(download.size(), start);
+                        System.out.println("Received file " + filename + " from " + peerName + " (" + peerKey + ")");
+                        System.out.println("Saved file to: " + target.toAbsolutePath());
                     }
+                    return;
+                }
+                if (!legacyPeers.contains(peerKey)) {
+                    return;
+                }
+            }
+
+            try (PeerStream conn = connect(host, port)) {
+                long start = System.nanoTime();
+                conn.writeLine("REQUEST_FILE " + filename);
+                String response = conn.readLine();
+                PeerMetrics.GLOBAL.timeToFirstByte.recordMicrosSince(start);
+                if (response != null && response.startsWith("APPROVE ")) {
+                    Path partFile = partialDir().resolve(filename + ".part");
+                    Files.createDirectories(partFile.getParent());
+                    try (FileChannel fileChannel = FileChannel.open(partFile, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        PeerMetrics.GLOBAL.transferCompleted(conn.receiveToEnd(fileChannel, 0), start);
+                    }
+                    moveIntoPlace(partFile, target);
+                    System.out.println("Received file " + filename + " from " + peerName + " (" + peerKey + ")");
+                    System.out.println("Saved file to: " + target.toAbsolutePath());
+                } else {
+                    System.out.println("Request for " + filename + " denied by " + peerName + " (" + peerKey + ")");
                 }
-                System.out.println("Received file " + filename + " from " + peerName + " (" + peerKey + ")");
-                System.out.println("Saved file to: " + file.getAbsolutePath());
-            } else {
-                System.out.println("Request for " + filename + " denied by " + peerName + " (" + peerKey + ")");
             }
         } catch (IOException e) {
             System.out.println("Error requesting file " + filename + " from " + peerName + " (" + peerKey + "): " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -273,74 +1246,410 @@ public class JavaPeer {
             return;
         }
         String peerKey = host + ":" + port;
-        try (Socket socket = new Socket(host, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             OutputStream binaryOut = socket.getOutputStream()) {
-
-            out.println("OFFER_FILE " + filename);
-            System.out.println("Offering file " + filename + " to " + peerName + " (" + peerKey + ")");
-            String response = in.readLine();
+        try (PeerStream conn = connect(host, port);
+             FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            String response;
+            if (conn.isFramed()) {
+                conn.writeLine("OFFER_FILE_VERSION " + size + " " + file.lastModified() + " " + filename);
+                System.out.println("Offering file " + filename + " to " + peerName + " (" + peerKey + ")");
+                response = conn.readLine();
+                if (response != null && response.startsWith("ERROR")) {
+                    // A peer from before versioned offers.
+                    conn.writeLine("OFFER_FILE " + size + " " + filename);
+                    response = conn.readLine();
+                }
+            } else {
+                conn.writeLine("OFFER_FILE " + filename);
+                System.out.println("Offering file " + filename + " to " + peerName + " (" + peerKey + ")");
+                response = conn.readLine();
+            }
             if (response != null && response.startsWith("ACCEPT ")) {
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        binaryOut.write(buffer, 0, bytesRead);
+                long offset = 0;
+                if (conn.isFramed()) {
+                    // The receiver says where to resume; anything outside the file is a broken reply.
+                    String[] parts = response.split(" ", 3);
+                    offset = parts.length < 2 ? -1 : Long.parseLong(parts[1]);
+                    if (offset < 0 || offset > size) {
+                        throw new IOException("Invalid resume offset in reply: " + response);
+                    }
+                    if (offset > 0) {
+                        System.out.println("Resuming " + filename + " at byte " + offset);
                     }
-                    binaryOut.flush();
                 }
+                long start = System.nanoTime();
+                conn.sendFile(fileChannel, offset, size - offset);
+                if (conn.isFramed()) {
+                    String ack = conn.readLine();
+                    if (ack == null || !ack.startsWith("RECEIVED ")) {
+                        System.out.println("Peer did not confirm receipt of " + filename + ": " + ack);
+                        return;
+                    }
+                }
+                PeerMetrics.GLOBAL.transferCompleted(size - offset, start);
                 System.out.println("Sent file " + filename + " to " + peerName + " (" + peerKey + ")");
             } else {
                 System.out.println("Offer for " + filename + " denied by " + peerName + " (" + peerKey + ")");
             }
-        } catch (IOException e) {
+        } catch (IOException | NumberFormatException e) {
             System.out.println("Error sending file " + filename + " to " + peerName + " (" + peerKey + "): " + e.getMessage());
         }
     }
 
-    private static void requestFileList(String host, int port, String peerName) {
+    /**
+     * Requests every file matching {@code patterns} (names, globs or directories) with one consent
+     * prompt on the peer, receiving them all over a single stream.
+     */
+    private static void requestBatch(String host, int port, String peerName, List<String> patterns) {
         String peerKey = host + ":" + port;
-        try (Socket socket = new Socket(host, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+        try (PeerStream conn = connect(host, port)) {
+            if (!conn.isFramed()) {
+                System.out.println(peerName + " (" + peerKey + ") does not support batch transfers");
+                return;
+            }
+            long start = System.nanoTime();
+            conn.writeLine("REQUEST_BATCH " + patterns.size());
+            for (String pattern : patterns) {
+                conn.writeLine(pattern);
+            }
+            System.out.println("Requesting " + String.join(" ", patterns) + " from " + peerName + " (" + peerKey + ")");
+            String response = conn.readLine();
+            if (response == null || !response.startsWith("MANIFEST ")) {
+                System.out.println("Request denied by " + peerName + " (" + peerKey + "): " + response);
+                return;
+            }
+            PeerMetrics.GLOBAL.timeToFirstByte.recordMicrosSince(start);
+            String[] header = response.split(" ");
+            List<BatchTransfer.Item> items = BatchTransfer.readManifest(conn, Integer.parseInt(header[1]));
+            long received = BatchTransfer.receive(conn, items, Paths.get(sharedDir), partialDir());
+            PeerMetrics.GLOBAL.transferCompleted(received, start);
+            System.out.println("Received " + items.size() + " files (" + received + " bytes) from " + peerName + " (" + peerKey + ")");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error requesting files from " + peerName + " (" + peerKey + "): " + e.getMessage());
+        }
+    }
 
-            out.println("LIST_FILES");
-            System.out.println("Requesting file list from " + peerName + " (" + peerKey + ")");
-            List<String> fileList = new ArrayList<>();
-            String line;
-            while ((line = in.readLine()) != null && !line.equals("END")) {
-                fileList.add(line);
+    /** Offers every local file matching {@code patterns} as one batch, approved once by the peer. */
+    private static void sendBatch(String host, int port, String peerName, List<String> patterns) {
+        String peerKey = host + ":" + port;
+        try (PeerStream conn = connect(host, port)) {
+            List<String> unmatched = new ArrayList<>();
+            List<BatchTransfer.Item> items = BatchTransfer.expand(Paths.get(sharedDir), patterns, unmatched);
+            if (!unmatched.isEmpty()) {
+                System.out.println("No files match " + unmatched + " in " + sharedDir);
+            }
+            if (items.isEmpty()) {
+                return;
+            }
+            if (!conn.isFramed()) {
+                System.out.println(peerName + " (" + peerKey + ") does not support batch transfers");
+                return;
+            }
+            conn.writeLine("OFFER_BATCH " + items.size() + " " + BatchTransfer.totalSize(items));
+            BatchTransfer.writeManifest(conn, items);
+            System.out.println("Offering " + items.size() + " files to " + peerName + " (" + peerKey + ")");
+            String response = conn.readLine();
+            if (response == null || !response.startsWith("ACCEPT ")) {
+                System.out.println("Offer denied by " + peerName + " (" + peerKey + "): " + response);
+                return;
+            }
+            long start = System.nanoTime();
+            BatchTransfer.send(conn, items);
+            String ack = conn.readLine();
+            if (ack == null || !ack.startsWith("RECEIVED ")) {
+                System.out.println("Peer did not confirm receipt of the files: " + ack);
+                return;
+            }
+            PeerMetrics.GLOBAL.transferCompleted(BatchTransfer.totalSize(items), start);
+            System.out.println("Sent " + items.size() + " files (" + BatchTransfer.totalSize(items) + " bytes) to " +
+                               peerName + " (" + peerKey + ")");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error sending files to " + peerName + " (" + peerKey + "): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Brings our copy of a file up to date with the peer's by transferring only the blocks that
+     * differ. Without a local copy this is an ordinary request.
+     */
+    private static void syncFile(String host, int port, String peerName, String filename) {
+        String peerKey = host + ":" + port;
+        if (!new File(sharedDir, filename).isFile()) {
+            System.out.println("No local copy of " + filename + "; requesting the whole file");
+            requestFile(host, port, peerName, filename);
+            return;
+        }
+        try (PeerStream conn = connect(host, port)) {
+            if (!conn.isFramed()) {
+                System.out.println(peerName + " (" + peerKey + ") does not support delta sync");
+                return;
+            }
+            conn.writeLine("SYNC_FILE " + filename);
+            System.out.println("Requesting changes to " + filename + " from " + peerName + " (" + peerKey + ")");
+            String response = conn.readLine();
+            if (response == null || !response.startsWith("SYNC_READY ")) {
+                System.out.println("Request for " + filename + " denied by " + peerName + " (" + peerKey + ")");
+                return;
+            }
+            DeltaSync.Stats stats = receiveDelta(conn, filename);
+            System.out.println("Synced " + filename + " from " + peerName + " (" + peerKey + "): " + stats.literalBytes +
+                               " bytes received, " + stats.copiedBytes + " bytes reused");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error syncing file " + filename + " from " + peerName + " (" + peerKey + "): " + e.getMessage());
+        }
+    }
+
+    /** Sends only the parts of a file that differ from the peer's copy of it. */
+    private static void pushFile(String host, int port, String peerName, String filename) {
+        File file = new File(sharedDir, filename);
+        if (!file.isFile()) {
+            System.out.println("File " + filename + " not found in " + sharedDir);
+            return;
+        }
+        String peerKey = host + ":" + port;
+        try (PeerStream conn = connect(host, port);
+             FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (!conn.isFramed()) {
+                System.out.println(peerName + " (" + peerKey + ") does not support delta sync");
+                return;
+            }
+            conn.writeLine("SYNC_OFFER " + source.size() + " " + filename);
+            System.out.println("Offering changes to " + filename + " to " + peerName + " (" + peerKey + ")");
+            String response = conn.readLine();
+            if (response == null || !response.startsWith("SYNC_READY ")) {
+                System.out.println("Offer for " + filename + " denied by " + peerName + " (" + peerKey + ")");
+                return;
             }
-            peerFileLists.put(peerKey, fileList);
-            if (fileList.isEmpty()) {
+            DeltaSync.Signature signature = DeltaSync.readSignature(conn);
+            DeltaSync.Stats stats = DeltaSync.writeDelta(conn, source, signature);
+            String ack = conn.readLine();
+            if (ack == null || !ack.startsWith("RECEIVED ")) {
+                System.out.println("Peer did not confirm receipt of " + filename + ": " + ack);
+                return;
+            }
+            System.out.println("Synced " + filename + " to " + peerName + " (" + peerKey + "): " + stats.literalBytes +
+                               " bytes sent, " + stats.copiedBytes + " bytes reused");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error syncing file " + filename + " to " + peerName + " (" + peerKey + "): " + e.getMessage());
+        }
+    }
+
+    /** Fetches and prints a peer's file list. */
+    private static void requestFileList(String host, int port, String peerName) {
+        String peerKey = host + ":" + port;
+        try {
+            System.out.println("Requesting file list from " + peerName + " (" + peerKey + ")");
+            PeerRegistry.Catalog catalog = fetchCatalog(host, port);
+            if (catalog.files.isEmpty()) {
                 System.out.println("No files available from " + peerName + " (" + peerKey + ")");
             } else {
-                System.out.println("Files available from " + peerName + " (" + peerKey + "): " + String.join(", ", fileList));
+                System.out.println("Files available from " + peerName + " (" + peerKey + "): " + String.join(", ", catalog.files.keySet()));
             }
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
             System.out.println("Error requesting file list from " + peerName + " (" + peerKey + "): " + e.getMessage());
         }
     }
 
+    /**
+     * Fetches a peer's file list into the registry. Framed peers are asked only for what changed
+     * since the version we last saw, which is applied to the cached list; legacy peers send the
+     * full list.
+     */
+    private static PeerRegistry.Catalog fetchCatalog(String host, int port) throws IOException {
+        String peerKey = host + ":" + port;
+        PeerRegistry.Catalog cached = registry.catalog(peerKey);
+        Map<String, SharedIndex.Entry> fileList;
+        String epoch = null;
+        long version = 0;
+        try (PeerStream conn = connect(host, port)) {
+            if (conn.isFramed()) {
+                conn.writeLine("LIST_FILES_SINCE " + (cached == null || cached.epoch == null ? "0" : cached.epoch + ":" + cached.version));
+                String[] header = String.valueOf(conn.readLine()).split(" ");
+                String[] token = header.length == 3 ? header[1].split(":", 2) : new String[0];
+                if (token.length != 2 || !"VERSION".equals(header[0])) {
+                    throw new IOException("Unexpected reply to LIST_FILES_SINCE: " + String.join(" ", header));
+                }
+                epoch = token[0];
+                version = Long.parseLong(token[1]);
+                boolean full = "FULL".equals(header[2]);
+                if (!full && (cached == null || !epoch.equals(cached.epoch))) {
+                    throw new IOException("Delta for a file list we don't have from " + peerKey);
+                }
+                // Apply the delta to a copy so a broken reply leaves the cached list intact.
+                fileList = full ? new TreeMap<>() : new TreeMap<>(cached.files);
+                String line;
+                while ((line = conn.readLine()) != null && !line.equals("END")) {
+                    if (line.startsWith("- ")) {
+                        fileList.remove(line.substring(2));
+                    } else if (line.startsWith("+ ")) {
+                        String[] fields = line.split(" ", 4);
+                        fileList.put(fields[3], new SharedIndex.Entry(fields[3], Long.parseLong(fields[1]),
+                                Long.parseLong(fields[2]), 0, false));
+                    }
+                }
+                if (line == null) {
+                    throw new EOFException("File list ended before END");
+                }
+            } else {
+                conn.writeLine("LIST_FILES");
+                fileList = new TreeMap<>();
+                String line;
+                while ((line = conn.readLine()) != null && !line.equals("END")) {
+                    fileList.put(line, new SharedIndex.Entry(line, -1, 0, 0, false));
+                }
+            }
+        }
+        PeerRegistry.Catalog catalog = new PeerRegistry.Catalog(fileList, epoch, version, System.currentTimeMillis());
+        registry.updateCatalog(peerKey, catalog);
+        return catalog;
+    }
+
+    /**
+     * Searches every peer's file list for {@code pattern}. Lists older than the cache TTL are
+     * refreshed in parallel first; peers that don't answer in time are searched in the list we
+     * already have, if any, and not asked again until the TTL has passed.
+     */
+    private static void searchPeers(String pattern) {
+        long now = System.currentTimeMillis();
+        List<PeerRegistry.Peer> stale = new ArrayList<>();
+        List<Callable<PeerRegistry.Catalog>> refreshes = new ArrayList<>();
+        for (PeerRegistry.Peer peer : registry.peers()) {
+            if (registry.needsRefresh(peer.key, now, CATALOG_TTL_MILLIS)) {
+                stale.add(peer);
+                refreshes.add(() -> fetchCatalog(peer.host, peer.port));
+            }
+        }
+        if (!refreshes.isEmpty()) {
+            try {
+                List<Future<PeerRegistry.Catalog>> results = searchPool.invokeAll(refreshes, SEARCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                for (int i = 0; i < results.size(); i++) {
+                    try {
+                        results.get(i).get();
+                    } catch (CancellationException e) {
+                        registry.refreshFailed(stale.get(i).key, now);
+                        System.out.println("No reply from " + stale.get(i) + " within " + SEARCH_TIMEOUT_SECONDS + "s");
+                    } catch (ExecutionException e) {
+                        registry.refreshFailed(stale.get(i).key, now);
+                        System.out.println("Could not list " + stale.get(i) + ": " + e.getCause().getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        Map<String, List<PeerRegistry.Peer>> matches = registry.search(pattern);
+        if (matches.isEmpty()) {
+            System.out.println("No files matching " + pattern);
+            return;
+        }
+        for (Map.Entry<String, List<PeerRegistry.Peer>> match : matches.entrySet()) {
+            StringBuilder holders = new StringBuilder();
+            for (PeerRegistry.Peer peer : match.getValue()) {
+                PeerRegistry.Catalog catalog = registry.catalog(peer.key);
+                SharedIndex.Entry entry = catalog == null ? null : catalog.files.get(match.getKey());
+                holders.append(holders.length() == 0 ? "" : ", ").append(peer.name);
+                if (entry != null && entry.size >= 0) {
+                    holders.append(" (").append(entry.size).append(" bytes)");
+                }
+            }
+            System.out.println(match.getKey() + ": " + holders);
+        }
+        System.out.println(matches.size() + " files matching " + pattern);
+    }
+
+    /** Permission, given once through the consent queue, to fetch ranges of one file. */
+    private static class Grant {
+        final File file;
+        final InetAddress peer;
+        final MerkleTree tree;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Grant(File file, InetAddress peer, MerkleTree tree) {
+            this.file = file;
+            this.peer = peer;
+            this.tree = tree;
+        }
+
+        /** False once the file no longer has the size and modification time its tree describes. */
+        boolean isUnchanged() {
+            return file.length() == tree.size && file.lastModified() == tree.modified;
+        }
+
+        boolean isValidFor(InetAddress address) {
+            return peer.equals(address) && !isExpired();
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - lastUsed > GRANT_TTL_MILLIS;
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private static class InterfaceListener implements NetworkTopologyListener {
+        @Override
+        public void inetAddressAdded(NetworkTopologyEvent event) {
+            System.out.println("Discovery started on " + event.getInetAddress().getHostAddress());
+        }
+
+        @Override
+        public void inetAddressRemoved(NetworkTopologyEvent event) {
+            System.out.println("Discovery stopped on " + event.getInetAddress().getHostAddress());
+        }
+    }
+
+    /** Seen on several interfaces, a peer may have several addresses; IPv4 is preferred. */
+    private static InetAddress peerAddress(ServiceInfo info) {
+        InetAddress[] addresses = info.getInet4Addresses().length > 0 ? info.getInet4Addresses() : info.getInetAddresses();
+        return addresses.length > 0 ? addresses[0] : null;
+    }
+
+    /**
+     * Our own service, seen through one of our interfaces. With one responder per interface it can
+     * come back renamed ("JavaPeer (2)"), so the name alone doesn't tell.
+     */
+    private static boolean isSelf(InetAddress address, int port) {
+        if (address == null || port != PORT) {
+            return false;
+        }
+        try {
+            return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
     private static class SampleListener implements ServiceListener {
+        /**
+         * Resolution waits for the service's records, so it runs on the resolve pool rather than the
+         * JmDNS callback thread; the answer arrives through {@link #serviceResolved} either way.
+         */
         @Override
         public void serviceAdded(ServiceEvent event) {
             System.out.println("Service added: " + event.getName());
-            event.getDNS().requestServiceInfo(event.getType(), event.getName(), 1000);
+            ServiceInfo info = event.getInfo();
+            if (info != null && info.hasData()) {
+                serviceResolved(event);
+                return;
+            }
+            resolvePool.execute(() -> event.getDNS().requestServiceInfo(event.getType(), event.getName(), RESOLVE_TIMEOUT_MILLIS));
         }
 
         @Override
         public void serviceRemoved(ServiceEvent event) {
             ServiceInfo info = event.getInfo();
             if (info != null) {
-                InetAddress address = info.getAddress();
+                InetAddress address = peerAddress(info);
                 if (address != null) {
                     String host = address.getHostAddress();
                     int port = info.getPort();
                     String peerKey = host + ":" + port;
-                    discoveredPeers.remove(peerKey);
-                    peerFileLists.remove(peerKey);
+                    registry.remove(peerKey);
+                    sessionPool.close(peerKey);
                     System.out.println("Service removed: " + info.getName());
                 }
             }
@@ -353,48 +1662,24 @@ public class JavaPeer {
                 System.out.println("Service resolved but info is null: " + event.getName());
                 return;
             }
-            if ("JavaPeer".equals(info.getName())) {
+            InetAddress address = peerAddress(info);
+            if ("JavaPeer".equals(info.getName()) || isSelf(address, info.getPort())) {
                 return;
             }
 
             System.out.println("Service resolved: " + info);
-            InetAddress address = info.getAddress();
             if (address != null) {
                 String host = address.getHostAddress();
                 int port = info.getPort();
                 String peerKey = host + ":" + port;
-                discoveredPeers.put(peerKey, info.getName());
-                System.out.println("Discovered peer: " + info.getName() + " at " + peerKey);
+                boolean known = registry.get(peerKey) != null;
+                registry.add(info.getName(), host, port);
+                if (!known) {
+                    System.out.println("Discovered peer: " + info.getName() + " at " + peerKey);
+                }
             } else {
                 System.out.println("No address available for " + info.getName());
             }
         }
     }
-
-    public static InetAddress getWifiIPv4Address() throws IOException {
-        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-        while (interfaces.hasMoreElements()) {
-            NetworkInterface ni = interfaces.nextElement();
-            try {
-                if (ni.isUp() && !ni.isLoopback()) {
-                    String displayName = ni.getDisplayName().toLowerCase();
-                    if (displayName.contains("wi-fi") || displayName.contains("wlan") || displayName.contains("wireless")) {
-                        Enumeration<InetAddress> addresses = ni.getInetAddresses();
-                        while (addresses.hasMoreElements()) {
-                            InetAddress addr = addresses.nextElement();
-                            if (addr instanceof java.net.Inet4Address && !addr.isLoopbackAddress()) {
-                                System.out.println("Found Wi-Fi interface: " + ni.getDisplayName() + 
-                                    " with IP: " + addr.getHostAddress());
-                                return addr;
-                            }
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                System.err.println("Error checking interface " + ni.getDisplayName() + ": " + e.getMessage());
-            }
-        }
-        System.out.println("No Wi-Fi interface detected, using fallback IP: 172.20.10.1");
-        return InetAddress.getByName("172.20.10.1");
-    }
 }
\ No newline at end of file
@@ -0,0 +1,532 @@
+package rkayyo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Station-to-station key agreement for framed connections, after which both sides switch to
+ * {@link SecureChannel} records.
+ *
+ * A full handshake is one round trip. The client pipelines {@code SECURE HELLO <ephemeral>
+ * <nonce>} behind the PROTO 2 hello; the server answers {@code SECURE KEY <ephemeral> <nonce>
+ * <sealed>}, where the sealed part carries its Ed25519 identity, its signature over the
+ * transcript and a session ticket. The client checks the identity against {@code known_peers}
+ * (trust on first use), sends {@code SECURE AUTH <sealed>} with its own identity and signature,
+ * and starts writing records straight after it without waiting for a reply.
+ *
+ * Tickets let later connections to the same peer skip the key exchange and signatures: {@code
+ * SECURE RESUME <ticket> <nonce>} is answered with {@code SECURE RESUMED <nonce>}, and fresh
+ * keys are derived from the ticket's secret and both nonces. A server that has forgotten the
+ * ticket answers {@code SECURE RETRY} and the client falls back to a full handshake on the same
+ * connection.
+ *
+ * Peers that answer SECURE with an ERROR (or don't speak the framed protocol at all) predate
+ * encryption. They are only used in plain text when that was allowed at startup with {@link
+ * #ALLOW_PLAIN_TEXT_PROPERTY}, and never once their identity is in {@code known_peers}: such a
+ * reply from a peer we have talked to securely before is someone in the middle stripping the
+ * encryption.
+ */
+class JavaSTS {
+    static final String IDENTITY_FILE = "identity";
+    static final String KNOWN_PEERS_FILE = "known_peers";
+    /** System property that allows connections to and from peers that don't support encryption. */
+    static final String ALLOW_PLAIN_TEXT_PROPERTY = "javapeer.allowPlainText";
+    private static final long TICKET_LIFETIME_MILLIS = 12 * 60 * 60 * 1000L;
+    private static final int MAX_TICKETS = 10_000;
+    private static final int NONCE_BYTES = 16;
+    private static final int KEY_BYTES = 32;
+    private static final int IV_BYTES = 12;
+    private static final byte[] LABEL = "javapeer-sts".getBytes(StandardCharsets.US_ASCII);
+
+    private final SecureRandom random = new SecureRandom();
+    private final Path stateDir;
+    private final KeyPair identity;
+    private final boolean allowPlainText;
+    private final Map<String, String> knownPeers = new ConcurrentHashMap<>();
+    private final Map<String, Ticket> clientTickets = new ConcurrentHashMap<>();
+    private final Map<String, Ticket> serverTickets = new LinkedHashMap<String, Ticket>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Ticket> eldest) {
+            return size() > MAX_TICKETS;
+        }
+    };
+
+    /** A resumption ticket: the id sent in the clear and the secret both sides derived for it. */
+    private static final class Ticket {
+        final String id;
+        final byte[] secret;
+        final long expiresAt;
+
+        Ticket(String id, byte[] secret) {
+            this.id = id;
+            this.secret = secret;
+            this.expiresAt = System.currentTimeMillis() + TICKET_LIFETIME_MILLIS;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+
+    /** Keys from one key exchange, before either side has proved its identity. */
+    private static final class Exchange {
+        final byte[] transcript;
+        final byte[] master;
+
+        Exchange(byte[] transcript, byte[] master) {
+            this.transcript = transcript;
+            this.master = master;
+        }
+    }
+
+    private JavaSTS(Path stateDir, KeyPair identity, boolean allowPlainText) {
+        this.stateDir = stateDir;
+        this.identity = identity;
+        this.allowPlainText = allowPlainText;
+    }
+
+    /**
+     * Loads this peer's identity from {@code stateDir}, creating one on first run. Unless {@code
+     * allowPlainText} is set, peers that don't support encryption are refused both ways.
+     */
+    static JavaSTS load(Path stateDir, boolean allowPlainText) throws IOException {
+        createPrivateDirectory(stateDir);
+        Path identityFile = stateDir.resolve(IDENTITY_FILE);
+        KeyPair identity;
+        try {
+            if (Files.exists(identityFile)) {
+                List<String> lines = Files.readAllLines(identityFile, StandardCharsets.US_ASCII);
+                if (lines.size() < 2) {
+                    throw new IOException("Corrupt identity file " + identityFile);
+                }
+                KeyFactory keys = KeyFactory.getInstance("Ed25519");
+                identity = new KeyPair(keys.generatePublic(new X509EncodedKeySpec(decode(lines.get(0)))),
+                                       keys.generatePrivate(new PKCS8EncodedKeySpec(decode(lines.get(1)))));
+            } else {
+                identity = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+                Path temp = stateDir.resolve(IDENTITY_FILE + ".tmp");
+                Files.deleteIfExists(temp);
+                if (isPosix()) {
+                    // Owner-only from the start, so the key is never readable by anyone else.
+                    Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+                }
+                Files.write(temp, List.of(encode(identity.getPublic().getEncoded()),
+                                          encode(identity.getPrivate().getEncoded())), StandardCharsets.US_ASCII);
+                Files.move(temp, identityFile);
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("Could not load identity from " + identityFile + ": " + e.getMessage(), e);
+        }
+        JavaSTS sts = new JavaSTS(stateDir, identity, allowPlainText);
+        Path knownPeersFile = stateDir.resolve(KNOWN_PEERS_FILE);
+        if (Files.exists(knownPeersFile)) {
+            for (String line : Files.readAllLines(knownPeersFile, StandardCharsets.US_ASCII)) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length == 2) {
+                    sts.knownPeers.put(fields[0], fields[1]);
+                }
+            }
+        }
+        return sts;
+    }
+
+    /**
+     * Creates {@code dir} (and any missing parents) readable only by its owner, and narrows an
+     * existing one to that. Outside POSIX file systems it is created with the default permissions.
+     */
+    static void createPrivateDirectory(Path dir) throws IOException {
+        if (!isPosix()) {
+            Files.createDirectories(dir);
+            return;
+        }
+        Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+    }
+
+    private static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+
+    /** Whether peers that don't support encryption may connect to us and be connected to. */
+    boolean allowsPlainText() {
+        return allowPlainText;
+    }
+
+    /** Whether {@code peerKey} may be used unencrypted: only if allowed, and never once it is pinned. */
+    boolean permitsPlainText(String peerKey) {
+        return allowPlainText && !knownPeers.containsKey(peerKey);
+    }
+
+    /** Throws unless {@link #permitsPlainText} does. */
+    void checkPlainText(String peerKey) throws IOException {
+        if (knownPeers.containsKey(peerKey)) {
+            throw new IOException(peerKey + " has a known identity but answered without encryption; refusing to " +
+                                  "continue in plain text");
+        }
+        if (!allowPlainText) {
+            throw new IOException(peerKey + " does not support encryption; start with -D" + ALLOW_PLAIN_TEXT_PROPERTY +
+                                  "=true to use it unencrypted");
+        }
+    }
+
+    /** Short fingerprint of this peer's identity key, for comparing out of band. */
+    String fingerprint() {
+        return fingerprint(identity.getPublic().getEncoded());
+    }
+
+    /**
+     * Opens a framed connection on {@code conn} and encrypts it, resuming a cached session with
+     * {@code peerKey} when there is one. Returns false if the peer didn't answer the PROTO 2
+     * hello, i.e. it is a legacy peer.
+     */
+    boolean connect(PeerConnection conn, String peerKey) throws IOException {
+        Ticket ticket = clientTickets.get(peerKey);
+        if (ticket != null && ticket.isExpired()) {
+            clientTickets.remove(peerKey, ticket);
+            ticket = null;
+        }
+        if (ticket == null) {
+            return handshake(conn, peerKey, true);
+        }
+        byte[] clientNonce = randomBytes(NONCE_BYTES);
+        conn.writeLine(PeerConnection.PROTOCOL_HELLO + "\nSECURE RESUME " + ticket.id + " " + encode(clientNonce));
+        if (!PeerConnection.PROTOCOL_HELLO.equals(conn.readLine())) {
+            return false;
+        }
+        conn.setFramed(true);
+        String reply = expectReply(conn);
+        if (reply.startsWith("SECURE RESUMED ")) {
+            byte[] serverNonce;
+            try {
+                serverNonce = decode(reply.substring("SECURE RESUMED ".length()));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed reply to SECURE RESUME: " + reply);
+            }
+            switchToRecords(conn, resumedMaster(ticket, clientNonce, serverNonce), true);
+            return true;
+        }
+        clientTickets.remove(peerKey, ticket);
+        if (reply.startsWith("ERROR")) {
+            throw new IOException(peerKey + " resumed a secure session before and now refuses encryption: " + reply);
+        }
+        if (!"SECURE RETRY".equals(reply)) {
+            throw new IOException("Unexpected reply to SECURE RESUME: " + reply);
+        }
+        return handshake(conn, peerKey, false);
+    }
+
+    /** Serves a {@code SECURE} request read from a framed connection. */
+    void accept(PeerConnection conn, String request) throws IOException {
+        String[] fields = request.split(" ");
+        try {
+            if (fields.length == 4 && "RESUME".equals(fields[1])) {
+                Ticket ticket;
+                synchronized (serverTickets) {
+                    ticket = serverTickets.get(fields[2]);
+                }
+                if (ticket == null || ticket.isExpired()) {
+                    conn.writeLine("SECURE RETRY");
+                    return;
+                }
+                byte[] serverNonce = randomBytes(NONCE_BYTES);
+                conn.writeLine("SECURE RESUMED " + encode(serverNonce));
+                switchToRecords(conn, resumedMaster(ticket, decode(fields[3]), serverNonce), false);
+            } else if (fields.length == 4 && "HELLO".equals(fields[1])) {
+                acceptHandshake(conn, decode(fields[2]), decode(fields[3]));
+            } else {
+                conn.writeLine("ERROR Usage: SECURE HELLO <key> <nonce> or SECURE RESUME <ticket> <nonce>");
+            }
+        } catch (IllegalArgumentException e) {
+            conn.writeLine("ERROR Malformed SECURE request");
+        }
+    }
+
+    /** Drops cached client sessions, so the next connection to every peer does a full handshake. */
+    void forgetSessions() {
+        clientTickets.clear();
+    }
+
+    private boolean handshake(PeerConnection conn, String peerKey, boolean withHello) throws IOException {
+        try {
+            KeyPair ephemeral = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+            byte[] clientPublic = ephemeral.getPublic().getEncoded();
+            byte[] clientNonce = randomBytes(NONCE_BYTES);
+            String hello = "SECURE HELLO " + encode(clientPublic) + " " + encode(clientNonce);
+            conn.writeLine(withHello ? PeerConnection.PROTOCOL_HELLO + "\n" + hello : hello);
+            if (withHello) {
+                if (!PeerConnection.PROTOCOL_HELLO.equals(conn.readLine())) {
+                    return false;
+                }
+                conn.setFramed(true);
+            }
+            String reply = expectReply(conn);
+            if (reply.startsWith("ERROR")) {
+                return plainText(peerKey);
+            }
+            String[] fields = reply.split(" ");
+            if (fields.length != 5 || !reply.startsWith("SECURE KEY ")) {
+                throw new IOException("Unexpected reply to SECURE HELLO: " + reply);
+            }
+            byte[] serverPublic = decode(fields[2]);
+            Exchange exchange = exchange(ephemeral.getPrivate(), serverPublic, clientPublic, serverPublic,
+                                         clientNonce, decode(fields[3]));
+
+            DataInputStream server = new DataInputStream(new ByteArrayInputStream(
+                    handshakeCipher(exchange, Cipher.DECRYPT_MODE, 1).doFinal(decode(fields[4]))));
+            byte[] serverIdentity = readField(server);
+            byte[] serverSignature = readField(server);
+            String ticketId = new String(readField(server), StandardCharsets.US_ASCII);
+            if (!verify(serverIdentity, "server", exchange.transcript, serverSignature)) {
+                throw new IOException("Peer " + peerKey + " failed to prove its identity");
+            }
+            checkKnownPeer(peerKey, serverIdentity);
+
+            ByteArrayOutputStream auth = new ByteArrayOutputStream();
+            DataOutputStream client = new DataOutputStream(auth);
+            writeField(client, identity.getPublic().getEncoded());
+            writeField(client, sign("client", exchange.transcript));
+            conn.writeLine("SECURE AUTH " + encode(handshakeCipher(exchange, Cipher.ENCRYPT_MODE, 2).doFinal(auth.toByteArray())));
+            switchToRecords(conn, exchange.master, true);
+            clientTickets.put(peerKey, new Ticket(ticketId, expand(exchange.master, "resumption", KEY_BYTES)));
+            return true;
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("Secure handshake with " + peerKey + " failed: " + e.getMessage(), e);
+        }
+    }
+
+    private void acceptHandshake(PeerConnection conn, byte[] clientPublic, byte[] clientNonce) throws IOException {
+        try {
+            KeyPair ephemeral = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+            byte[] serverPublic = ephemeral.getPublic().getEncoded();
+            byte[] serverNonce = randomBytes(NONCE_BYTES);
+            Exchange exchange = exchange(ephemeral.getPrivate(), clientPublic, clientPublic, serverPublic,
+                                         clientNonce, serverNonce);
+            String ticketId = encode(randomBytes(NONCE_BYTES));
+
+            ByteArrayOutputStream auth = new ByteArrayOutputStream();
+            DataOutputStream server = new DataOutputStream(auth);
+            writeField(server, identity.getPublic().getEncoded());
+            writeField(server, sign("server", exchange.transcript));
+            writeField(server, ticketId.getBytes(StandardCharsets.US_ASCII));
+            conn.writeLine("SECURE KEY " + encode(serverPublic) + " " + encode(serverNonce) + " " +
+                           encode(handshakeCipher(exchange, Cipher.ENCRYPT_MODE, 1).doFinal(auth.toByteArray())));
+
+            String reply = conn.readLine();
+            if (reply == null || !reply.startsWith("SECURE AUTH ")) {
+                throw new IOException("Expected SECURE AUTH, got " + reply);
+            }
+            DataInputStream client = new DataInputStream(new ByteArrayInputStream(
+                    handshakeCipher(exchange, Cipher.DECRYPT_MODE, 2).doFinal(decode(reply.substring("SECURE AUTH ".length())))));
+            byte[] clientIdentity = readField(client);
+            if (!verify(clientIdentity, "client", exchange.transcript, readField(client))) {
+                throw new IOException("Peer " + conn.remoteAddress() + " failed to prove its identity");
+            }
+            switchToRecords(conn, exchange.master, false);
+            synchronized (serverTickets) {
+                serverTickets.put(ticketId, new Ticket(ticketId, expand(exchange.master, "resumption", KEY_BYTES)));
+            }
+            System.out.println("Secure session with " + conn.remoteAddress() + " (identity " + fingerprint(clientIdentity) + ")");
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("Secure handshake with " + conn.remoteAddress() + " failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Agrees a shared secret and derives the master key from it, salted with a hash of everything
+     * both sides sent. Both signatures cover the same hash, which binds the identities to this
+     * exchange.
+     */
+    private Exchange exchange(PrivateKey ours, byte[] theirs, byte[] clientPublic, byte[] serverPublic,
+                              byte[] clientNonce, byte[] serverNonce) throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance("XDH");
+        agreement.init(ours);
+        agreement.doPhase(KeyFactory.getInstance("XDH").generatePublic(new X509EncodedKeySpec(theirs)), true);
+        byte[] transcript = sha256(LABEL, clientPublic, serverPublic, clientNonce, serverNonce);
+        return new Exchange(transcript, extract(transcript, agreement.generateSecret()));
+    }
+
+    private static byte[] resumedMaster(Ticket ticket, byte[] clientNonce, byte[] serverNonce) throws IOException {
+        try {
+            return extract(sha256(LABEL, ticket.id.getBytes(StandardCharsets.US_ASCII), clientNonce, serverNonce), ticket.secret);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not derive session keys: " + e.getMessage(), e);
+        }
+    }
+
+    private static void switchToRecords(PeerConnection conn, byte[] master, boolean client) throws IOException {
+        try {
+            byte[] c2sKey = expand(master, "c2s key", KEY_BYTES);
+            byte[] c2sIv = expand(master, "c2s iv", IV_BYTES);
+            byte[] s2cKey = expand(master, "s2c key", KEY_BYTES);
+            byte[] s2cIv = expand(master, "s2c iv", IV_BYTES);
+            if (client) {
+                conn.secure(c2sKey, c2sIv, s2cKey, s2cIv);
+            } else {
+                conn.secure(s2cKey, s2cIv, c2sKey, c2sIv);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not derive session keys: " + e.getMessage(), e);
+        }
+    }
+
+    /** Handshake messages are sealed once each under their own nonce: 1 for the server, 2 for the client. */
+    private static Cipher handshakeCipher(Exchange exchange, int mode, int message) throws GeneralSecurityException {
+        byte[] iv = expand(exchange.master, "handshake iv", IV_BYTES);
+        iv[IV_BYTES - 1] ^= (byte) message;
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, new SecretKeySpec(expand(exchange.master, "handshake key", KEY_BYTES), "AES"),
+                    new GCMParameterSpec(128, iv));
+        cipher.updateAAD(exchange.transcript);
+        return cipher;
+    }
+
+    private byte[] sign(String role, byte[] transcript) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("Ed25519");
+        signature.initSign(identity.getPrivate());
+        signature.update(LABEL);
+        signature.update((" " + role).getBytes(StandardCharsets.US_ASCII));
+        signature.update(transcript);
+        return signature.sign();
+    }
+
+    private static boolean verify(byte[] publicKey, String role, byte[] transcript, byte[] signed) throws GeneralSecurityException {
+        PublicKey key = KeyFactory.getInstance("Ed25519").generatePublic(new X509EncodedKeySpec(publicKey));
+        Signature signature = Signature.getInstance("Ed25519");
+        signature.initVerify(key);
+        signature.update(LABEL);
+        signature.update((" " + role).getBytes(StandardCharsets.US_ASCII));
+        signature.update(transcript);
+        return signature.verify(signed);
+    }
+
+    /**
+     * Trust on first use: the first identity seen for a peer is recorded in {@code known_peers},
+     * and a different one later is refused until that line is removed.
+     */
+    private void checkKnownPeer(String peerKey, byte[] publicKey) throws IOException {
+        String presented = encode(publicKey);
+        String known = knownPeers.putIfAbsent(peerKey, presented);
+        if (known == null) {
+            synchronized (knownPeers) {
+                Files.write(stateDir.resolve(KNOWN_PEERS_FILE),
+                            (peerKey + " " + presented + "\n").getBytes(StandardCharsets.US_ASCII),
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            System.out.println("Trusting " + peerKey + " with identity " + fingerprint(publicKey));
+        } else if (!known.equals(presented)) {
+            throw new IOException("Identity of " + peerKey + " changed to " + fingerprint(publicKey) + " (was " +
+                                  fingerprint(decode(known)) + "); remove its line from " +
+                                  stateDir.resolve(KNOWN_PEERS_FILE) + " if this is expected");
+        }
+    }
+
+    private boolean plainText(String peerKey) throws IOException {
+        checkPlainText(peerKey);
+        System.out.println("Warning: " + peerKey + " does not support encryption; continuing unencrypted");
+        return true;
+    }
+
+    private static String expectReply(PeerConnection conn) throws IOException {
+        String reply = conn.readLine();
+        if (reply == null) {
+            throw new IOException("Connection closed during secure handshake");
+        }
+        return reply;
+    }
+
+    private static byte[] extract(byte[] salt, byte[] secret) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        return mac.doFinal(secret);
+    }
+
+    /** HKDF-Expand for outputs of at most one hash length, which is all this needs. */
+    private static byte[] expand(byte[] master, String label, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(master, "HmacSHA256"));
+        mac.update(LABEL);
+        mac.update((" " + label).getBytes(StandardCharsets.US_ASCII));
+        mac.update((byte) 1);
+        byte[] output = new byte[length];
+        System.arraycopy(mac.doFinal(), 0, output, 0, length);
+        return output;
+    }
+
+    private static byte[] sha256(byte[]... parts) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (byte[] part : parts) {
+            digest.update(ByteBuffer.allocate(4).putInt(part.length).array());
+            digest.update(part);
+        }
+        return digest.digest();
+    }
+
+    private static String fingerprint(byte[] publicKey) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(publicKey);
+            StringBuilder fingerprint = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                fingerprint.append(i == 0 ? "" : ":").append(String.format("%02x", hash[i]));
+            }
+            return fingerprint.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void writeField(DataOutputStream out, byte[] field) throws IOException {
+        out.writeShort(field.length);
+        out.write(field);
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException {
+        byte[] field = new byte[in.readUnsignedShort()];
+        in.readFully(field);
+        return field;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static byte[] decode(String text) {
+        return Base64.getDecoder().decode(text);
+    }
+}
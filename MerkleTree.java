@@ -0,0 +1,170 @@
+package rkayyo;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * SHA-256 hash tree over a file's fixed-size chunks. A leaf is {@code SHA-256(0x00 || chunk)}, an
+ * inner node {@code SHA-256(0x01 || left || right)}, and an odd node at the end of a level is
+ * carried up unchanged, so the root identifies the whole content and any single chunk can be
+ * checked against its leaf.
+ *
+ * Leaves can be filled in in any order as chunks are hashed, on either side of a transfer; the
+ * root is available once every leaf is known. A tree also records the size and modification time
+ * of the file it describes, so a cached tree is only reused while the file is unchanged.
+ */
+class MerkleTree {
+    static final int CHUNK_SIZE = 1 << 20;
+    static final int HASH_SIZE = 32;
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    final long size;
+    final long modified;
+    private final byte[][] leaves;
+    private int known;
+    private byte[] root;
+
+    MerkleTree(long size, long modified) {
+        this.size = size;
+        this.modified = modified;
+        this.leaves = new byte[chunkCount(size)][];
+    }
+
+    static int chunkCount(long size) {
+        return (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    static long chunkOffset(int chunk) {
+        return (long) chunk * CHUNK_SIZE;
+    }
+
+    /** Hashes the remaining bytes of {@code chunk} as a leaf, without moving its position. */
+    static byte[] hashChunk(ByteBuffer chunk) {
+        MessageDigest digest = digests.get();
+        digest.update((byte) 0);
+        digest.update(chunk.duplicate());
+        return digest.digest();
+    }
+
+    int chunkCount() {
+        return leaves.length;
+    }
+
+    long chunkLength(int chunk) {
+        return Math.min(CHUNK_SIZE, size - chunkOffset(chunk));
+    }
+
+    /** The leaf for {@code chunk}, or null if it hasn't been hashed yet. */
+    synchronized byte[] leaf(int chunk) {
+        return leaves[chunk];
+    }
+
+    synchronized void setLeaf(int chunk, byte[] hash) {
+        if (leaves[chunk] == null) {
+            known++;
+        }
+        leaves[chunk] = hash;
+        root = null;
+    }
+
+    synchronized boolean isComplete() {
+        return known == leaves.length;
+    }
+
+    /** Every leaf in chunk order, concatenated, or null until they are all known. */
+    synchronized byte[] leafBytes() {
+        if (known < leaves.length) {
+            return null;
+        }
+        byte[] bytes = new byte[leaves.length * HASH_SIZE];
+        for (int chunk = 0; chunk < leaves.length; chunk++) {
+            System.arraycopy(leaves[chunk], 0, bytes, chunk * HASH_SIZE, HASH_SIZE);
+        }
+        return bytes;
+    }
+
+    /** True if every chunk overlapping {@code [offset, offset + length)} has a leaf. */
+    synchronized boolean covers(long offset, long length) {
+        if (length == 0) {
+            return true;
+        }
+        for (int chunk = (int) (offset / CHUNK_SIZE); chunk <= (int) ((offset + length - 1) / CHUNK_SIZE); chunk++) {
+            if (leaves[chunk] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The root hash, or null until every leaf is known. */
+    synchronized byte[] root() {
+        if (known < leaves.length) {
+            return null;
+        }
+        if (root == null) {
+            byte[][] level = leaves.length == 0 ? new byte[][] {hashChunk(ByteBuffer.allocate(0))} : leaves.clone();
+            int count = level.length;
+            while (count > 1) {
+                int next = 0;
+                for (int i = 0; i < count; i += 2) {
+                    if (i + 1 == count) {
+                        level[next++] = level[i];
+                    } else {
+                        MessageDigest digest = digests.get();
+                        digest.update((byte) 1);
+                        digest.update(level[i]);
+                        digest.update(level[i + 1]);
+                        level[next++] = digest.digest();
+                    }
+                }
+                count = next;
+            }
+            root = level[0];
+        }
+        return root;
+    }
+
+    /** The root as hex, or {@code -} while it isn't known; the form used on the wire. */
+    String rootHex() {
+        byte[] hash = root();
+        return hash == null ? "-" : toHex(hash);
+    }
+
+    static boolean matches(byte[] expected, byte[] actual) {
+        return expected != null && Arrays.equals(expected, actual);
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /** Parses a hex hash; returns null for {@code -} or anything that isn't one. */
+    static byte[] fromHex(String hex) {
+        if (hex.length() != HASH_SIZE * 2) {
+            return null;
+        }
+        byte[] bytes = new byte[HASH_SIZE];
+        for (int i = 0; i < HASH_SIZE; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,562 @@
+package rkayyo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Many concurrent {@link PeerStream}s over one framed connection. After the PROTO 2 hello the
+ * client sends MUX, and from then on the socket carries frames of
+ * {@code [int stream id][byte type][int length][payload]}. Client streams use odd ids and a stream
+ * is opened by its first frame; CLOSE ends a stream in both directions.
+ *
+ * Each stream has a credit window that the receiver tops up as it consumes data, so a slow
+ * stream can't make the session buffer without bound or hold up the others. Only the reading
+ * thread of a stream sends credit, never the session's frame reader, so the frame reader never
+ * blocks on the socket's write side. A peer that sends more than the credit it was given has the
+ * session closed, like any other protocol violation.
+ *
+ * Streams are paced by {@link BandwidthScheduler} one frame at a time, before the write lock is
+ * taken, so a stream waiting for bandwidth never holds up the others. Frames of interactive
+ * streams (see {@link PeerStream#setTrafficClass}) and control frames (credit, CLOSE) go ahead of
+ * bulk frames: a bulk writer waits while any such frame is queued for the write lock, and the
+ * lock is fair, so a reply waits for at most the one bulk frame already on the wire.
+ *
+ * A session with no open streams and no traffic for its idle timeout ({@link #closeWhenIdle})
+ * is closed, so a pooled session doesn't hold a connection slot on the other side forever.
+ */
+class MuxSession implements Closeable {
+    static final String MUX_HELLO = "MUX";
+
+    private static final byte DATA = 0;
+    private static final byte CLOSE = 1;
+    private static final byte WINDOW = 2;
+    private static final int HEADER_SIZE = 9;
+    private static final int MAX_FRAME = 256 * 1024;
+    static final int WINDOW_SIZE = 4 * 1024 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final ScheduledExecutorService idleReaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mux-idle");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final PeerConnection conn;
+    private final InetAddress address;
+    private final Consumer<PeerStream> acceptor;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    private final AtomicInteger urgentWriters = new AtomicInteger();
+    private final ByteBuffer writeHeader = ByteBuffer.allocate(HEADER_SIZE);
+    private int highestRemoteId;
+    private volatile boolean open = true;
+    private volatile long lastActive = System.nanoTime();
+    private ScheduledFuture<?> idleCheck;
+
+    /**
+     * @param acceptor receives streams opened by the other side (server side), or null when only
+     *                 this side opens streams (client side)
+     */
+    MuxSession(PeerConnection conn, Consumer<PeerStream> acceptor) {
+        this.conn = conn;
+        this.address = conn.remoteAddress();
+        this.acceptor = acceptor;
+        conn.setScheduled(false);
+    }
+
+    /** Reads frames on a daemon thread; used on the client side. */
+    void start() {
+        Thread reader = new Thread(this::run, "mux-" + conn.remoteAddress().getHostAddress());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    int activeStreams() {
+        return streams.size();
+    }
+
+    /** Closes the session once it has had no streams and no frames for {@code timeout}. */
+    synchronized void closeWhenIdle(long timeout, TimeUnit unit) {
+        long timeoutNanos = unit.toNanos(timeout);
+        long period = Math.max(1, unit.toMillis(timeout) / 4);
+        idleCheck = idleReaper.scheduleWithFixedDelay(() -> {
+            if (streams.isEmpty() && System.nanoTime() - lastActive > timeoutNanos) {
+                shutdown();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    PeerStream openStream() throws IOException {
+        if (!open) {
+            throw new IOException("Session closed");
+        }
+        lastActive = System.nanoTime();
+        return new Stream(0);
+    }
+
+    /** Reads and dispatches frames until the connection ends. */
+    void run() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try {
+            while (true) {
+                header.clear();
+                conn.readFully(header);
+                header.flip();
+                int id = header.getInt();
+                byte type = header.get();
+                int length = header.getInt();
+                if (length < 0 || length > MAX_FRAME) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                conn.readFully(payload);
+                payload.flip();
+                lastActive = System.nanoTime();
+
+                Stream stream = streams.get(id);
+                if (stream == null && acceptor != null && (id & 1) == 1 && id > highestRemoteId) {
+                    highestRemoteId = id;
+                    stream = new Stream(id);
+                    streams.put(id, stream);
+                    PeerMetrics.GLOBAL.muxStreamsOpened.increment();
+                    acceptor.accept(stream);
+                }
+                if (stream == null) {
+                    continue; // Late frame for a stream both sides have closed.
+                }
+                switch (type) {
+                    case DATA:
+                        stream.deliver(payload);
+                        break;
+                    case CLOSE:
+                        stream.remoteClosed();
+                        break;
+                    case WINDOW:
+                        stream.addCredit(payload.getInt());
+                        break;
+                    default:
+                        throw new IOException("Unknown frame type " + type);
+                }
+            }
+        } catch (IOException e) {
+            // The connection is gone; every stream fails below.
+        } finally {
+            shutdown();
+        }
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    private void shutdown() {
+        open = false;
+        synchronized (this) {
+            if (idleCheck != null) {
+                idleCheck.cancel(false);
+            }
+        }
+        try {
+            conn.close();
+        } catch (IOException ignored) {
+            // Already broken.
+        }
+        for (Stream stream : streams.values()) {
+            stream.fail();
+        }
+        streams.clear();
+    }
+
+    private void writeFrame(Stream stream, byte type, ByteBuffer payload) throws IOException {
+        boolean urgent = type != DATA || stream.trafficClass == BandwidthScheduler.TrafficClass.INTERACTIVE;
+        if (urgent) {
+            urgentWriters.incrementAndGet();
+        } else {
+            awaitUrgentWriters();
+        }
+        writeLock.lock();
+        try {
+            writeHeader.clear();
+            writeHeader.putInt(stream.idForWrite()).put(type).putInt(payload.remaining()).flip();
+            conn.write(writeHeader, payload);
+            lastActive = System.nanoTime();
+        } catch (IOException e) {
+            shutdown();
+            throw e;
+        } finally {
+            writeLock.unlock();
+            if (urgent && urgentWriters.decrementAndGet() == 0) {
+                synchronized (urgentWriters) {
+                    urgentWriters.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void writeFileFrame(Stream stream, FileChannel file, long position, int length) throws IOException {
+        awaitUrgentWriters();
+        writeLock.lock();
+        try {
+            writeHeader.clear();
+            writeHeader.putInt(stream.idForWrite()).put(DATA).putInt(length).flip();
+            conn.write(writeHeader);
+            conn.sendFile(file, position, length);
+            lastActive = System.nanoTime();
+        } catch (IOException e) {
+            shutdown();
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Lets queued small frames go first; called by bulk writers before taking the write lock. */
+    private void awaitUrgentWriters() throws InterruptedIOException {
+        if (urgentWriters.get() == 0) {
+            return;
+        }
+        synchronized (urgentWriters) {
+            while (urgentWriters.get() > 0) {
+                try {
+                    urgentWriters.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to send");
+                }
+            }
+        }
+    }
+
+    private final class Stream implements PeerStream {
+        private volatile int id;
+        private final BlockingQueue<ByteBuffer> inbound = new LinkedBlockingQueue<>();
+        private final Object creditLock = new Object();
+        private long credit = WINDOW_SIZE;
+        /** What the other side may still send before it hears of more credit. */
+        private final AtomicLong receiveWindow = new AtomicLong(WINDOW_SIZE);
+        private ByteBuffer current = EMPTY;
+        private boolean ended;
+        private int unacknowledged;
+        private boolean remoteClosed;
+        private boolean localClosed;
+        private volatile boolean failed;
+        private volatile BandwidthScheduler.TrafficClass trafficClass = BandwidthScheduler.TrafficClass.INTERACTIVE;
+
+        /** @param id the remote's id for streams it opened, or 0 for a local stream not yet on the wire */
+        Stream(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Local streams get their id when their first frame is written, under the write lock, so
+         * ids appear on the wire in increasing order and the reader can tell new streams apart
+         * from late frames of closed ones.
+         */
+        private int idForWrite() {
+            if (id == 0) {
+                id = nextStreamId.getAndAdd(2);
+                streams.put(id, this);
+            }
+            return id;
+        }
+
+        @Override
+        public boolean isFramed() {
+            return true;
+        }
+
+        @Override
+        public InetAddress remoteAddress() {
+            return conn.remoteAddress();
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            while (true) {
+                ByteBuffer buffer = nextBuffer();
+                if (buffer == null) {
+                    return line.size() == 0 ? null : decode(line);
+                }
+                int start = buffer.position();
+                boolean complete = false;
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        complete = true;
+                        break;
+                    }
+                    if (line.size() >= PeerConnection.MAX_LINE_LENGTH) {
+                        consumed(buffer.position() - start);
+                        throw new IOException("Line too long");
+                    }
+                    line.write(b);
+                }
+                consumed(buffer.position() - start);
+                if (complete) {
+                    return decode(line);
+                }
+            }
+        }
+
+        @Override
+        public void writeLine(String line) throws IOException {
+            write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+            boolean bulk = trafficClass == BandwidthScheduler.TrafficClass.BULK;
+            if (!bulk) {
+                BandwidthScheduler.UPLOAD.interactive(address, data.remaining());
+            }
+            while (data.hasRemaining()) {
+                long granted = bulk ? BandwidthScheduler.UPLOAD.bulk(address, Math.min(MAX_FRAME, data.remaining()))
+                                    : data.remaining();
+                while (granted > 0) {
+                    int n = acquireCredit((int) Math.min(MAX_FRAME, granted));
+                    ByteBuffer slice = data.slice();
+                    slice.limit(n);
+                    writeFrame(this, DATA, slice);
+                    data.position(data.position() + n);
+                    granted -= n;
+                }
+            }
+        }
+
+        @Override
+        public void readFully(ByteBuffer target) throws IOException {
+            if (trafficClass == BandwidthScheduler.TrafficClass.BULK) {
+                BandwidthScheduler.DOWNLOAD.pay(address, target.remaining());
+            }
+            while (target.hasRemaining()) {
+                ByteBuffer buffer = nextBuffer();
+                if (buffer == null) {
+                    throw new EOFException("Stream closed with " + target.remaining() + " bytes outstanding");
+                }
+                ByteBuffer slice = buffer.slice();
+                int n = Math.min(slice.remaining(), target.remaining());
+                slice.limit(n);
+                target.put(slice);
+                buffer.position(buffer.position() + n);
+                consumed(n);
+            }
+        }
+
+        @Override
+        public void sendFile(FileChannel file, long position, long count) throws IOException {
+            while (count > 0) {
+                long granted = BandwidthScheduler.UPLOAD.bulk(address, Math.min(MAX_FRAME, count));
+                while (granted > 0) {
+                    int n = acquireCredit((int) granted);
+                    writeFileFrame(this, file, position, n);
+                    position += n;
+                    count -= n;
+                    granted -= n;
+                }
+            }
+        }
+
+        @Override
+        public void receiveFile(FileChannel file, long position, long count) throws IOException {
+            while (count > 0) {
+                ByteBuffer buffer = nextBuffer();
+                if (buffer == null) {
+                    throw new EOFException("Stream closed with " + count + " bytes outstanding");
+                }
+                BandwidthScheduler.DOWNLOAD.pay(address, Math.min(buffer.remaining(), count));
+                int n = writeTo(file, position, buffer, count);
+                position += n;
+                count -= n;
+            }
+        }
+
+        @Override
+        public long receiveToEnd(FileChannel file, long position) throws IOException {
+            long start = position;
+            ByteBuffer buffer;
+            while ((buffer = nextBuffer()) != null) {
+                BandwidthScheduler.DOWNLOAD.pay(address, buffer.remaining());
+                position += writeTo(file, position, buffer, Long.MAX_VALUE);
+            }
+            return position - start;
+        }
+
+        @Override
+        public void setTrafficClass(BandwidthScheduler.TrafficClass trafficClass) {
+            this.trafficClass = trafficClass;
+        }
+
+        @Override
+        public void close() throws IOException {
+            boolean sendClose;
+            synchronized (this) {
+                if (localClosed) {
+                    return;
+                }
+                localClosed = true;
+                sendClose = open && !failed && id != 0;
+                if (remoteClosed) {
+                    streams.remove(id);
+                }
+            }
+            synchronized (creditLock) {
+                creditLock.notifyAll();
+            }
+            if (sendClose) {
+                writeFrame(this, CLOSE, EMPTY.duplicate());
+            }
+        }
+
+        void deliver(ByteBuffer payload) throws IOException {
+            if (receiveWindow.addAndGet(-payload.remaining()) < 0) {
+                throw new IOException("Stream " + id + " sent more than its credit window");
+            }
+            if (payload.hasRemaining()) {
+                inbound.add(payload);
+            }
+        }
+
+        void remoteClosed() {
+            synchronized (this) {
+                remoteClosed = true;
+                inbound.add(END);
+                if (localClosed) {
+                    streams.remove(id);
+                }
+            }
+            synchronized (creditLock) {
+                creditLock.notifyAll();
+            }
+        }
+
+        void addCredit(int n) {
+            synchronized (creditLock) {
+                credit += n;
+                creditLock.notifyAll();
+            }
+        }
+
+        void fail() {
+            synchronized (this) {
+                if (!remoteClosed) {
+                    failed = true;
+                }
+            }
+            inbound.add(END);
+            synchronized (creditLock) {
+                creditLock.notifyAll();
+            }
+        }
+
+        private ByteBuffer nextBuffer() throws IOException {
+            if (current.hasRemaining()) {
+                return current;
+            }
+            if (ended) {
+                return null;
+            }
+            ByteBuffer next;
+            try {
+                next = inbound.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading stream");
+            }
+            if (next == END) {
+                ended = true;
+                if (failed) {
+                    throw new IOException("Session to " + remoteAddress() + " closed");
+                }
+                return null;
+            }
+            current = next;
+            return current;
+        }
+
+        private int writeTo(FileChannel file, long position, ByteBuffer buffer, long limit) throws IOException {
+            ByteBuffer slice = buffer.slice();
+            if (slice.remaining() > limit) {
+                slice.limit((int) limit);
+            }
+            int n = slice.remaining();
+            while (slice.hasRemaining()) {
+                file.write(slice, position + (n - slice.remaining()));
+            }
+            buffer.position(buffer.position() + n);
+            consumed(n);
+            return n;
+        }
+
+        /** Returns credit to the sender once a quarter of the window has been consumed. */
+        private void consumed(int n) throws IOException {
+            unacknowledged += n;
+            if (unacknowledged >= WINDOW_SIZE / 4) {
+                boolean stillOpen;
+                synchronized (this) {
+                    stillOpen = !remoteClosed && !localClosed && open;
+                }
+                if (stillOpen) {
+                    receiveWindow.addAndGet(unacknowledged);
+                    ByteBuffer update = ByteBuffer.allocate(4).putInt(unacknowledged);
+                    update.flip();
+                    writeFrame(this, WINDOW, update);
+                }
+                unacknowledged = 0;
+            }
+        }
+
+        private int acquireCredit(int wanted) throws IOException {
+            synchronized (creditLock) {
+                while (true) {
+                    synchronized (this) {
+                        if (localClosed || remoteClosed || failed || !open) {
+                            throw new IOException("Stream to " + remoteAddress() + " closed");
+                        }
+                    }
+                    if (credit > 0) {
+                        int n = (int) Math.min(wanted, credit);
+                        credit -= n;
+                        return n;
+                    }
+                    try {
+                        creditLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting to send");
+                    }
+                }
+            }
+        }
+    }
+
+    private static String decode(ByteArrayOutputStream line) {
+        String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+}
@@ -0,0 +1,134 @@
+package rkayyo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The peers last known to the {@link PeerRegistry}, with their addresses and file lists, saved in
+ * {@code peers.cache} in the peer's state directory so a restarted peer can list, search and reach
+ * them straight away instead of waiting for mDNS to find them again. Discovery keeps refreshing
+ * the registry in the background, and a cached file list past its TTL is brought up to date (as a
+ * delta from its version) the next time it is needed. Versions are stored with the peer's epoch
+ * ("-" for peers that don't version their lists), so a peer that restarted since answers with its
+ * full list; a cached list saved without an epoch is dropped on load.
+ *
+ * The file is rewritten in one step (a temporary file moved over it) after the registry changes.
+ * Peers that haven't been seen for {@link #MAX_AGE_MILLIS} are not loaded again.
+ *
+ * <pre>
+ * peer &lt;host&gt; &lt;port&gt; &lt;seen at&gt; &lt;name&gt;
+ * catalog &lt;epoch&gt; &lt;version&gt; &lt;fetched at&gt;
+ * + &lt;size&gt; &lt;modified&gt; &lt;file name&gt;
+ * </pre>
+ */
+class PeerCache {
+    static final String CACHE_FILE = "peers.cache";
+    static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private final Path file;
+    private final PeerRegistry registry;
+    private long savedChanges = -1;
+
+    PeerCache(Path stateDir, PeerRegistry registry) {
+        this.file = stateDir.resolve(CACHE_FILE);
+        this.registry = registry;
+    }
+
+    /** Adds the cached peers to the registry; returns how many there were. A damaged cache is ignored. */
+    int load() {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        int loaded = 0;
+        long now = System.currentTimeMillis();
+        try {
+            String peerKey = null;
+            String epoch = null;
+            long version = 0;
+            long fetchedAt = 0;
+            Map<String, SharedIndex.Entry> files = null;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (line.startsWith("peer ")) {
+                    addCatalog(peerKey, files, epoch, version, fetchedAt);
+                    files = null;
+                    String[] fields = line.split(" ", 5);
+                    long seen = Long.parseLong(fields[3]);
+                    peerKey = null;
+                    if (now - seen < MAX_AGE_MILLIS) {
+                        registry.add(fields[4], fields[1], Integer.parseInt(fields[2]), seen);
+                        peerKey = fields[1] + ":" + fields[2];
+                        loaded++;
+                    }
+                } else if (line.startsWith("catalog ") && peerKey != null) {
+                    String[] fields = line.split(" ");
+                    if (fields.length != 4) {
+                        // Saved before versions had epochs; its version can't be trusted.
+                        continue;
+                    }
+                    epoch = "-".equals(fields[1]) ? null : fields[1];
+                    version = Long.parseLong(fields[2]);
+                    fetchedAt = Long.parseLong(fields[3]);
+                    files = new TreeMap<>();
+                } else if (line.startsWith("+ ") && files != null) {
+                    String[] fields = line.split(" ", 4);
+                    files.put(fields[3], new SharedIndex.Entry(fields[3], Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), 0, false));
+                }
+            }
+            addCatalog(peerKey, files, epoch, version, fetchedAt);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring peer cache " + file + ": " + e.getMessage());
+        }
+        synchronized (this) {
+            savedChanges = registry.changes();
+        }
+        return loaded;
+    }
+
+    /** Writes the registry out if it changed since it was last loaded or saved. */
+    synchronized void saveIfChanged() throws IOException {
+        long changes = registry.changes();
+        if (changes == savedChanges) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (PeerRegistry.Peer peer : registry.peers()) {
+            lines.add("peer " + peer.host + " " + peer.port + " " + registry.seenAt(peer.key) + " " + peer.name);
+            PeerRegistry.Catalog catalog = registry.catalog(peer.key);
+            if (catalog != null) {
+                lines.add("catalog " + (catalog.epoch == null ? "-" : catalog.epoch) + " " + catalog.version + " " +
+                          catalog.fetchedAt);
+                for (SharedIndex.Entry entry : catalog.files.values()) {
+                    if (entry.name.indexOf('\n') < 0 && entry.name.indexOf('\r') < 0) {
+                        lines.add("+ " + entry.size + " " + entry.modified + " " + entry.name);
+                    }
+                }
+            }
+        }
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(CACHE_FILE + ".tmp");
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        savedChanges = changes;
+    }
+
+    private void addCatalog(String peerKey, Map<String, SharedIndex.Entry> files, String epoch, long version,
+                            long fetchedAt) {
+        if (peerKey != null && files != null) {
+            registry.updateCatalog(peerKey, new PeerRegistry.Catalog(files, epoch, version, fetchedAt));
+        }
+    }
+}
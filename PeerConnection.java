@@ -0,0 +1,316 @@
+package rkayyo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A peer socket carrying text command lines and raw file payloads on the same channel.
+ *
+ * Lines are read through a small read-ahead buffer; any payload bytes that arrive together with
+ * a line are drained from that buffer before the rest is pulled with FileChannel.transferFrom, so
+ * nothing is lost between the two. Outgoing payloads use FileChannel.transferTo (sendfile).
+ *
+ * Once {@link JavaSTS} has agreed keys, {@link #secure} switches the connection to encrypted
+ * records and every read and write from then on goes through a {@link SecureChannel}.
+ *
+ * Payloads are paced by {@link BandwidthScheduler}: file transfers are bulk traffic, and other
+ * reads and writes are in the connection's {@link #setTrafficClass traffic class}. A connection
+ * carrying a {@link MuxSession} is not scheduled itself, since the session's streams are.
+ */
+class PeerConnection implements PeerStream {
+    /** First line of a framed (version 2) connection; peers that don't echo it are legacy peers. */
+    static final String PROTOCOL_HELLO = "PROTO 2";
+
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final SocketChannel socket;
+    private final ByteBuffer readAhead = ByteBuffer.allocateDirect(8192);
+    private final InetAddress address;
+    private final PeerMetrics.PeerCounters counters;
+    private boolean framed;
+    private boolean scheduled = true;
+    private BandwidthScheduler.TrafficClass trafficClass = BandwidthScheduler.TrafficClass.INTERACTIVE;
+    private SecureChannel secure;
+
+    PeerConnection(SocketChannel socket) {
+        this.socket = socket;
+        this.address = remoteAddress();
+        this.counters = PeerMetrics.GLOBAL.peer(address);
+        readAhead.flip();
+    }
+
+    static PeerConnection open(String host, int port) throws IOException {
+        SocketChannel socket = SocketChannel.open();
+        try {
+            socket.connect(new InetSocketAddress(host, port));
+            socket.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new PeerConnection(socket);
+    }
+
+    /** Sends the framed-protocol hello and reports whether the peer answered it. */
+    boolean negotiateFramed() throws IOException {
+        writeLine(PROTOCOL_HELLO);
+        framed = PROTOCOL_HELLO.equals(readLine());
+        return framed;
+    }
+
+    void setFramed(boolean framed) {
+        this.framed = framed;
+    }
+
+    /**
+     * Switches to AES-GCM records with the given keys. Bytes already read ahead are the start of
+     * the peer's first record, so they are handed to the record layer rather than lost.
+     */
+    void secure(byte[] sendKey, byte[] sendIv, byte[] receiveKey, byte[] receiveIv) {
+        ByteBuffer pending = ByteBuffer.allocate(readAhead.remaining());
+        pending.put(readAhead).flip();
+        secure = new SecureChannel(socket, counters, sendKey, sendIv, receiveKey, receiveIv, pending);
+    }
+
+    boolean isSecure() {
+        return secure != null;
+    }
+
+    void setScheduled(boolean scheduled) {
+        this.scheduled = scheduled;
+    }
+
+    @Override
+    public boolean isFramed() {
+        return framed;
+    }
+
+    @Override
+    public InetAddress remoteAddress() {
+        return socket.socket().getInetAddress();
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        while (true) {
+            if (!readAhead.hasRemaining() && !fill()) {
+                return line.size() == 0 ? null : decode(line);
+            }
+            byte b = readAhead.get();
+            if (b == '\n') {
+                return decode(line);
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+            line.write(b);
+        }
+    }
+
+    @Override
+    public void writeLine(String line) throws IOException {
+        write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long n = scheduled ? BandwidthScheduler.UPLOAD.bulk(address, end - position) : end - position;
+            sendChunk(file, position, n);
+            position += n;
+        }
+    }
+
+    private void sendChunk(FileChannel file, long position, long count) throws IOException {
+        if (secure != null) {
+            secure.sendFile(file, position, count);
+            return;
+        }
+        long end = position + count;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, socket);
+            if (sent <= 0) {
+                if (position >= file.size()) {
+                    throw new EOFException("File shrank while sending");
+                }
+                continue;
+            }
+            counters.bytesOut.add(sent);
+            position += sent;
+        }
+    }
+
+    @Override
+    public void receiveFile(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        position += drainReadAhead(file, position, count);
+        while (position < end) {
+            long n = scheduled ? BandwidthScheduler.DOWNLOAD.bulk(address, end - position) : end - position;
+            receiveChunk(file, position, n);
+            position += n;
+        }
+    }
+
+    private void receiveChunk(FileChannel file, long position, long count) throws IOException {
+        if (secure != null) {
+            secure.receiveFile(file, position, count);
+            return;
+        }
+        long end = position + count;
+        while (position < end) {
+            long received = file.transferFrom(socket, position, end - position);
+            if (received <= 0) {
+                throw new EOFException("Connection closed with " + (end - position) + " bytes outstanding");
+            }
+            counters.bytesIn.add(received);
+            position += received;
+        }
+    }
+
+    /** Legacy transfers are terminated by the sender closing the socket. */
+    @Override
+    public long receiveToEnd(FileChannel file, long position) throws IOException {
+        long start = position;
+        position += drainReadAhead(file, position, Long.MAX_VALUE);
+        if (secure != null) {
+            return position - start + secure.receiveToEnd(file, position);
+        }
+        long received;
+        while ((received = file.transferFrom(socket, position, 1L << 20)) > 0) {
+            counters.bytesIn.add(received);
+            position += received;
+            if (scheduled) {
+                BandwidthScheduler.DOWNLOAD.pay(address, received);
+            }
+        }
+        return position - start;
+    }
+
+    @Override
+    public void setTrafficClass(BandwidthScheduler.TrafficClass trafficClass) {
+        this.trafficClass = trafficClass;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /** Fills {@code buffer} completely, taking read-ahead bytes first. */
+    @Override
+    public void readFully(ByteBuffer buffer) throws IOException {
+        if (scheduled && trafficClass == BandwidthScheduler.TrafficClass.BULK) {
+            while (buffer.hasRemaining()) {
+                int n = (int) BandwidthScheduler.DOWNLOAD.bulk(address, buffer.remaining());
+                ByteBuffer slice = buffer.slice();
+                slice.limit(n);
+                readAvailable(slice);
+                buffer.position(buffer.position() + n);
+            }
+            return;
+        }
+        readAvailable(buffer);
+    }
+
+    private void readAvailable(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && readAhead.hasRemaining()) {
+            int n = Math.min(buffer.remaining(), readAhead.remaining());
+            ByteBuffer slice = readAhead.slice();
+            slice.limit(n);
+            buffer.put(slice);
+            readAhead.position(readAhead.position() + n);
+        }
+        while (buffer.hasRemaining()) {
+            int n = secure != null ? secure.read(buffer) : socket.read(buffer);
+            if (n < 0) {
+                throw new EOFException("Connection closed");
+            }
+            if (secure == null) {
+                counters.bytesIn.add(n);
+            }
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        if (scheduled && trafficClass == BandwidthScheduler.TrafficClass.BULK) {
+            while (data.hasRemaining()) {
+                int n = (int) BandwidthScheduler.UPLOAD.bulk(address, data.remaining());
+                ByteBuffer slice = data.slice();
+                slice.limit(n);
+                writeNow(slice);
+                data.position(data.position() + n);
+            }
+            return;
+        }
+        if (scheduled) {
+            BandwidthScheduler.UPLOAD.interactive(address, data.remaining());
+        }
+        writeNow(data);
+    }
+
+    private void writeNow(ByteBuffer data) throws IOException {
+        if (secure != null) {
+            secure.write(data);
+            return;
+        }
+        while (data.hasRemaining()) {
+            counters.bytesOut.add(socket.write(data));
+        }
+    }
+
+    /** Writes all of {@code buffers} with gathering writes, unscheduled; used by {@link MuxSession}. */
+    void write(ByteBuffer... buffers) throws IOException {
+        if (secure != null) {
+            secure.write(buffers);
+            return;
+        }
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining() || buffers[0].hasRemaining()) {
+            counters.bytesOut.add(socket.write(buffers));
+        }
+    }
+
+    private long drainReadAhead(FileChannel file, long position, long limit) throws IOException {
+        if (!readAhead.hasRemaining()) {
+            return 0;
+        }
+        ByteBuffer slice = readAhead.slice();
+        if (slice.remaining() > limit) {
+            slice.limit((int) limit);
+        }
+        int n = slice.remaining();
+        while (slice.hasRemaining()) {
+            file.write(slice, position + (n - slice.remaining()));
+        }
+        readAhead.position(readAhead.position() + n);
+        return n;
+    }
+
+    private boolean fill() throws IOException {
+        readAhead.clear();
+        int n = secure != null ? secure.read(readAhead) : socket.read(readAhead);
+        readAhead.flip();
+        if (n > 0 && secure == null) {
+            counters.bytesIn.add(n);
+        }
+        if (n > 0 && scheduled) {
+            BandwidthScheduler.DOWNLOAD.interactive(address, n);
+        }
+        return n > 0;
+    }
+
+    private static String decode(ByteArrayOutputStream line) {
+        String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+}
@@ -0,0 +1,245 @@
+package rkayyo;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms for everything a peer does on the wire. Recording is allocation-free
+ * once a peer has been seen: counters are {@link LongAdder}s, per-peer counters are looked up once
+ * per connection, and latencies go into fixed-size {@link Histogram}s.
+ *
+ * Readable through JMX ({@link #register}) and the STATS command ({@link #report}).
+ */
+class PeerMetrics implements PeerMetricsMXBean {
+    static final String OBJECT_NAME = "rkayyo:type=PeerMetrics";
+    static final PeerMetrics GLOBAL = new PeerMetrics();
+
+    /** Bytes exchanged with one remote address. */
+    static final class PeerCounters {
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final Map<InetAddress, PeerCounters> peers = new ConcurrentHashMap<>();
+    final LongAdder connectionsAccepted = new LongAdder();
+    final LongAdder connectionsRejected = new LongAdder();
+    final LongAdder connectionsActive = new LongAdder();
+    final LongAdder muxStreamsOpened = new LongAdder();
+    final LongAdder transfersCompleted = new LongAdder();
+    final LongAdder rangesServed = new LongAdder();
+    final LongAdder consentsApproved = new LongAdder();
+    final LongAdder consentsDenied = new LongAdder();
+    final LongAdder chunksVerified = new LongAdder();
+    final LongAdder chunksCorrupt = new LongAdder();
+    final Histogram transferThroughput = new Histogram();
+    final Histogram rangeThroughput = new Histogram();
+    final Histogram timeToFirstByte = new Histogram();
+    final Histogram consentWait = new Histogram();
+    final Histogram listFilesServiceTime = new Histogram();
+    final Histogram diskSync = new Histogram();
+
+    /** Counters for one remote address; callers keep the result for the life of a connection. */
+    PeerCounters peer(InetAddress address) {
+        PeerCounters counters = peers.get(address);
+        return counters != null ? counters : peers.computeIfAbsent(address, a -> new PeerCounters());
+    }
+
+    /**
+     * Records a finished transfer of {@code bytes} that started at {@code startNanos}: a whole
+     * file or batch, on whichever side it finished.
+     */
+    void transferCompleted(long bytes, long startNanos) {
+        transfersCompleted.increment();
+        transferThroughput.record(bytesPerSecond(bytes, startNanos));
+    }
+
+    /**
+     * Records one range of a segmented download served to a peer. Ranges are kept apart from
+     * whole transfers, which the downloading side records once per file.
+     */
+    void rangeServed(long bytes, long startNanos) {
+        rangesServed.increment();
+        rangeThroughput.record(bytesPerSecond(bytes, startNanos));
+    }
+
+    private static long bytesPerSecond(long bytes, long startNanos) {
+        long nanos = Math.max(1, System.nanoTime() - startNanos);
+        return (long) (bytes * 1e9 / nanos);
+    }
+
+    void consentAnswered(boolean approved, long startNanos) {
+        consentWait.recordMicrosSince(startNanos);
+        (approved ? consentsApproved : consentsDenied).increment();
+    }
+
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.out.println("Could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /** One {@code name value} line per metric, as sent in reply to STATS. */
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("uptime_seconds " + getUptimeSeconds());
+        lines.add("connections_accepted " + getConnectionsAccepted());
+        lines.add("connections_rejected " + getConnectionsRejected());
+        lines.add("connections_active " + getConnectionsActive());
+        lines.add("mux_streams_opened " + getMuxStreamsOpened());
+        lines.add("bytes_in " + getBytesIn());
+        lines.add("bytes_out " + getBytesOut());
+        for (Map.Entry<String, Long> entry : getBytesInByPeer().entrySet()) {
+            lines.add("bytes_in{peer=\"" + entry.getKey() + "\"} " + entry.getValue());
+        }
+        for (Map.Entry<String, Long> entry : getBytesOutByPeer().entrySet()) {
+            lines.add("bytes_out{peer=\"" + entry.getKey() + "\"} " + entry.getValue());
+        }
+        lines.add("transfers_completed " + getTransfersCompleted());
+        lines.add("ranges_served " + getRangesServed());
+        lines.add("consents_approved " + getConsentsApproved());
+        lines.add("consents_denied " + getConsentsDenied());
+        lines.add("chunks_verified " + getChunksVerified());
+        lines.add("chunks_corrupt " + getChunksCorrupt());
+        lines.add("transfer_throughput_bytes_per_second " + getTransferThroughput());
+        lines.add("range_throughput_bytes_per_second " + getRangeThroughput());
+        lines.add("time_to_first_byte_micros " + getTimeToFirstByte());
+        lines.add("consent_wait_micros " + getConsentWait());
+        lines.add("list_files_service_micros " + getListFilesServiceTime());
+        lines.add("disk_sync_micros " + getDiskSync());
+        return lines;
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getConnectionsRejected() {
+        return connectionsRejected.sum();
+    }
+
+    @Override
+    public long getConnectionsActive() {
+        return connectionsActive.sum();
+    }
+
+    @Override
+    public long getMuxStreamsOpened() {
+        return muxStreamsOpened.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return total(c -> c.bytesIn.sum());
+    }
+
+    @Override
+    public long getBytesOut() {
+        return total(c -> c.bytesOut.sum());
+    }
+
+    @Override
+    public Map<String, Long> getBytesInByPeer() {
+        return byPeer(c -> c.bytesIn.sum());
+    }
+
+    @Override
+    public Map<String, Long> getBytesOutByPeer() {
+        return byPeer(c -> c.bytesOut.sum());
+    }
+
+    @Override
+    public long getTransfersCompleted() {
+        return transfersCompleted.sum();
+    }
+
+    @Override
+    public long getRangesServed() {
+        return rangesServed.sum();
+    }
+
+    @Override
+    public long getConsentsApproved() {
+        return consentsApproved.sum();
+    }
+
+    @Override
+    public long getConsentsDenied() {
+        return consentsDenied.sum();
+    }
+
+    @Override
+    public long getChunksVerified() {
+        return chunksVerified.sum();
+    }
+
+    @Override
+    public long getChunksCorrupt() {
+        return chunksCorrupt.sum();
+    }
+
+    @Override
+    public Distribution getTransferThroughput() {
+        return transferThroughput.snapshot();
+    }
+
+    @Override
+    public Distribution getRangeThroughput() {
+        return rangeThroughput.snapshot();
+    }
+
+    @Override
+    public Distribution getTimeToFirstByte() {
+        return timeToFirstByte.snapshot();
+    }
+
+    @Override
+    public Distribution getConsentWait() {
+        return consentWait.snapshot();
+    }
+
+    @Override
+    public Distribution getListFilesServiceTime() {
+        return listFilesServiceTime.snapshot();
+    }
+
+    @Override
+    public Distribution getDiskSync() {
+        return diskSync.snapshot();
+    }
+
+    private long total(ToLongFunction<PeerCounters> field) {
+        long total = 0;
+        for (PeerCounters counters : peers.values()) {
+            total += field.applyAsLong(counters);
+        }
+        return total;
+    }
+
+    private Map<String, Long> byPeer(ToLongFunction<PeerCounters> field) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<InetAddress, PeerCounters> entry : peers.entrySet()) {
+            result.merge(entry.getKey().getHostAddress(), field.applyAsLong(entry.getValue()), Long::sum);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,113 @@
+package rkayyo;
+
+import java.util.Map;
+import javax.management.ConstructorParameters;
+
+/**
+ * Transfer and connection metrics of this peer, registered as {@value PeerMetrics#OBJECT_NAME}.
+ * Byte counts are what crossed the socket, including command lines and frame headers. Times are
+ * in microseconds and throughput in bytes per second.
+ */
+public interface PeerMetricsMXBean {
+
+    /** Summary of a {@link Histogram}. */
+    final class Distribution {
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        @ConstructorParameters({"count", "mean", "p50", "p90", "p99", "max"})
+        public Distribution(long count, long mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + mean + " p50=" + p50 + " p90=" + p90 + " p99=" + p99 + " max=" + max;
+        }
+    }
+
+    long getUptimeSeconds();
+
+    long getConnectionsAccepted();
+
+    long getConnectionsRejected();
+
+    long getConnectionsActive();
+
+    long getMuxStreamsOpened();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    Map<String, Long> getBytesInByPeer();
+
+    Map<String, Long> getBytesOutByPeer();
+
+    /** Whole files and batches sent or received; a segmented download counts once, on the downloading side. */
+    long getTransfersCompleted();
+
+    /** Ranges of segmented downloads served to peers. */
+    long getRangesServed();
+
+    long getConsentsApproved();
+
+    long getConsentsDenied();
+
+    /** Downloaded chunks whose hash matched. */
+    long getChunksVerified();
+
+    /** Downloaded chunks whose hash didn't match and were fetched again. */
+    long getChunksCorrupt();
+
+    /** Per completed transfer, in bytes per second. */
+    Distribution getTransferThroughput();
+
+    /** Per served range, in bytes per second. */
+    Distribution getRangeThroughput();
+
+    /** From sending a request to its reply header on the downloading side. */
+    Distribution getTimeToFirstByte();
+
+    /** From a request arriving to the user's answer (or the timeout). */
+    Distribution getConsentWait();
+
+    /** LIST_FILES and LIST_FILES_SINCE, from request to END. */
+    Distribution getListFilesServiceTime();
+
+    /** Forcing a received segment to disk before it is journaled. */
+    Distribution getDiskSync();
+}
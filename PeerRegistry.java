@@ -0,0 +1,201 @@
+package rkayyo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Peers found by discovery, keyed by {@code host:port} with an index by service name, and the
+ * file list last fetched from each. It is updated from JmDNS callback threads and read from the
+ * CLI and transfer threads, so everything in it is safe to use concurrently. Every change bumps
+ * {@link #changes()}, so {@link PeerCache} knows when there is something new to save.
+ */
+class PeerRegistry {
+
+    static final class Peer {
+        final String key;
+        final String name;
+        final String host;
+        final int port;
+
+        Peer(String name, String host, int port) {
+            this.key = host + ":" + port;
+            this.name = name;
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + key + ")";
+        }
+    }
+
+    /**
+     * A peer's file list as fetched at {@code fetchedAt}; replaced as a whole, never modified.
+     * {@code version} only means something within the peer's {@code epoch} (null for peers that
+     * don't version their lists).
+     */
+    static final class Catalog {
+        final Map<String, SharedIndex.Entry> files;
+        final String epoch;
+        final long version;
+        final long fetchedAt;
+
+        Catalog(Map<String, SharedIndex.Entry> files, String epoch, long version, long fetchedAt) {
+            this.files = Collections.unmodifiableMap(files);
+            this.epoch = epoch;
+            this.version = version;
+            this.fetchedAt = fetchedAt;
+        }
+
+        boolean isFresh(long now, long ttlMillis) {
+            return now - fetchedAt < ttlMillis;
+        }
+    }
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Map<String, Peer> byName = new ConcurrentHashMap<>();
+    private final Map<String, Catalog> catalogs = new ConcurrentHashMap<>();
+    private final Map<String, Long> failedAt = new ConcurrentHashMap<>();
+    private final Map<String, Long> seenAt = new ConcurrentHashMap<>();
+    private final FileNameIndex index = new FileNameIndex();
+    private final AtomicLong changes = new AtomicLong();
+
+    /** Adds a peer that was just discovered. */
+    void add(String name, String host, int port) {
+        add(name, host, port, System.currentTimeMillis());
+    }
+
+    /** Adds a peer last seen at {@code seen}. */
+    synchronized void add(String name, String host, int port, long seen) {
+        Peer peer = new Peer(name, host, port);
+        Peer previous = peers.put(peer.key, peer);
+        if (previous != null && !previous.name.equals(name)) {
+            byName.remove(previous.name, previous);
+        }
+        byName.put(name, peer);
+        seenAt.merge(peer.key, seen, Math::max);
+        changes.incrementAndGet();
+    }
+
+    /** Forgets a peer and its file list. */
+    synchronized void remove(String key) {
+        Peer peer = peers.remove(key);
+        if (peer != null) {
+            byName.remove(peer.name, peer);
+        }
+        failedAt.remove(key);
+        seenAt.remove(key);
+        Catalog catalog = catalogs.remove(key);
+        if (catalog != null) {
+            index.update(key, catalog.files.keySet(), Collections.emptySet());
+        }
+        changes.incrementAndGet();
+    }
+
+    Peer get(String key) {
+        return peers.get(key);
+    }
+
+    /** The peer with exactly this name, or else the first whose name starts with it. */
+    Peer find(String name) {
+        Peer peer = byName.get(name);
+        if (peer != null) {
+            return peer;
+        }
+        for (Peer candidate : peers.values()) {
+            if (candidate.name.startsWith(name)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    Collection<Peer> peers() {
+        return new ArrayList<>(peers.values());
+    }
+
+    List<String> names() {
+        List<String> names = new ArrayList<>(byName.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    Catalog catalog(String key) {
+        return catalogs.get(key);
+    }
+
+    /** When the peer was last discovered or answered a request; 0 if it isn't known. */
+    long seenAt(String key) {
+        return seenAt.getOrDefault(key, 0L);
+    }
+
+    /** Counts changes to peers and their file lists. */
+    long changes() {
+        return changes.get();
+    }
+
+    /**
+     * Whether a peer's list should be fetched again: it is older than {@code ttlMillis}, and so is
+     * the last failed attempt, so an unreachable peer doesn't hold up every search.
+     */
+    boolean needsRefresh(String key, long now, long ttlMillis) {
+        Catalog catalog = catalogs.get(key);
+        Long failed = failedAt.get(key);
+        return (catalog == null || !catalog.isFresh(now, ttlMillis)) && (failed == null || now - failed >= ttlMillis);
+    }
+
+    void refreshFailed(String key, long now) {
+        if (peers.containsKey(key)) {
+            failedAt.put(key, now);
+        }
+    }
+
+    /** Stores a freshly fetched file list, unless the peer went away while it was being fetched. */
+    synchronized void updateCatalog(String key, Catalog catalog) {
+        if (!peers.containsKey(key)) {
+            return;
+        }
+        failedAt.remove(key);
+        seenAt.merge(key, catalog.fetchedAt, Math::max);
+        Catalog previous = catalogs.put(key, catalog);
+        Set<String> before = previous == null ? Collections.emptySet() : previous.files.keySet();
+        Set<String> removed = new HashSet<>(before);
+        removed.removeAll(catalog.files.keySet());
+        Set<String> added = new HashSet<>(catalog.files.keySet());
+        added.removeAll(before);
+        index.update(key, removed, added);
+        changes.incrementAndGet();
+    }
+
+    /** Keys of the peers whose last fetched list has {@code filename}. */
+    Set<String> peersWith(String filename) {
+        return index.peersWith(filename);
+    }
+
+    /** Every listed file matching {@code pattern}, sorted by name, with the peers that list it. */
+    Map<String, List<Peer>> search(String pattern) {
+        Map<String, List<Peer>> results = new TreeMap<>();
+        for (Map.Entry<String, Set<String>> match : index.search(pattern).entrySet()) {
+            List<Peer> holders = new ArrayList<>();
+            for (String key : match.getValue()) {
+                Peer peer = peers.get(key);
+                if (peer != null) {
+                    holders.add(peer);
+                }
+            }
+            if (!holders.isEmpty()) {
+                results.put(match.getKey(), holders);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,45 @@
+package rkayyo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One request/response conversation with a peer: command lines plus raw file payloads. It is
+ * either a whole socket ({@link PeerConnection}) or one stream of a {@link MuxSession}.
+ */
+interface PeerStream extends Closeable {
+
+    /** True when payloads are length-framed; false for legacy EOF-terminated transfers. */
+    boolean isFramed();
+
+    InetAddress remoteAddress();
+
+    /** Reads one line (without the terminator), or returns null at end of stream. */
+    String readLine() throws IOException;
+
+    void writeLine(String line) throws IOException;
+
+    /** Writes all of {@code data}; used for payloads assembled in memory. */
+    void write(ByteBuffer data) throws IOException;
+
+    /** Fills {@code buffer} completely from the payload. */
+    void readFully(ByteBuffer buffer) throws IOException;
+
+    /** Sends exactly {@code count} bytes of {@code file} starting at {@code position}. */
+    void sendFile(FileChannel file, long position, long count) throws IOException;
+
+    /** Receives exactly {@code count} bytes into {@code file} at {@code position}. */
+    void receiveFile(FileChannel file, long position, long count) throws IOException;
+
+    /** Receives into {@code file} until the other side ends the stream. Returns the bytes written. */
+    long receiveToEnd(FileChannel file, long position) throws IOException;
+
+    /**
+     * Sets the priority class of what {@link #writeLine}, {@link #write} and {@link #readFully}
+     * move from now on. Streams start out interactive; file transfers are always bulk.
+     */
+    void setTrafficClass(BandwidthScheduler.TrafficClass trafficClass);
+}
@@ -0,0 +1,378 @@
+package rkayyo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM record layer over a socket, set up by {@link JavaSTS}. Every write becomes one or more
+ * records of {@code [int plaintext length][ciphertext + 16-byte tag]}, with the length as
+ * associated data. The nonce is the direction's base IV XORed with the record's sequence number,
+ * so records can't be dropped, replayed or reordered without failing authentication.
+ *
+ * Because a record's nonce depends only on its index, large file payloads are encrypted and
+ * decrypted on several cores at once: a window of records is in flight on the crypto pool while
+ * the calling thread writes (or reads) them to the socket in order.
+ */
+class SecureChannel {
+    static final int RECORD_SIZE = 256 * 1024;
+    private static final int HEADER_BYTES = 4;
+    private static final int TAG_BYTES = 16;
+    private static final int TAG_BITS = TAG_BYTES * 8;
+    private static final long PARALLEL_THRESHOLD = 2L * RECORD_SIZE;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int WINDOW = 2 * THREADS;
+    private static final ExecutorService cryptoPool = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread t = new Thread(r, "secure-crypto");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is not available", e);
+        }
+    });
+
+    private final SocketChannel socket;
+    private final PeerMetrics.PeerCounters counters;
+    private final SecretKeySpec sendKey;
+    private final byte[] sendIv;
+    private final SecretKeySpec receiveKey;
+    private final byte[] receiveIv;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    private final ByteBuffer sealed = ByteBuffer.allocate(HEADER_BYTES + RECORD_SIZE + TAG_BYTES);
+    private final ByteBuffer opened = ByteBuffer.allocate(HEADER_BYTES + RECORD_SIZE + TAG_BYTES);
+    private final ByteBuffer pending;
+    private long sendSequence;
+    private long receiveSequence;
+    private boolean ended;
+
+    SecureChannel(SocketChannel socket, PeerMetrics.PeerCounters counters, byte[] sendKey, byte[] sendIv,
+                  byte[] receiveKey, byte[] receiveIv, ByteBuffer pending) {
+        this.socket = socket;
+        this.pending = pending;
+        this.counters = counters;
+        this.sendKey = new SecretKeySpec(sendKey, "AES");
+        this.sendIv = sendIv.clone();
+        this.receiveKey = new SecretKeySpec(receiveKey, "AES");
+        this.receiveIv = receiveIv.clone();
+        opened.flip();
+    }
+
+    /** Reads decrypted bytes into {@code target}; returns -1 once the peer has closed the connection. */
+    int read(ByteBuffer target) throws IOException {
+        if (!opened.hasRemaining()) {
+            if (ended || !readRecord()) {
+                return -1;
+            }
+        }
+        int n = Math.min(opened.remaining(), target.remaining());
+        ByteBuffer slice = opened.slice();
+        slice.limit(n);
+        target.put(slice);
+        opened.position(opened.position() + n);
+        return n;
+    }
+
+    /** Encrypts and writes everything remaining in {@code buffers}, as few records as possible. */
+    synchronized void write(ByteBuffer... buffers) throws IOException {
+        int index = 0;
+        while (index < buffers.length) {
+            sealed.clear();
+            sealed.position(HEADER_BYTES);
+            while (index < buffers.length && sealed.position() < HEADER_BYTES + RECORD_SIZE) {
+                ByteBuffer source = buffers[index];
+                int n = Math.min(source.remaining(), HEADER_BYTES + RECORD_SIZE - sealed.position());
+                ByteBuffer slice = source.slice();
+                slice.limit(n);
+                sealed.put(slice);
+                source.position(source.position() + n);
+                if (!source.hasRemaining()) {
+                    index++;
+                }
+            }
+            int length = sealed.position() - HEADER_BYTES;
+            if (length == 0) {
+                break;
+            }
+            sealed.putInt(0, length);
+            seal(sealed, length, sendSequence++);
+            writeFully(sealed);
+        }
+    }
+
+    /** Encrypts {@code count} bytes of {@code file} from {@code position}, in parallel for large payloads. */
+    synchronized void sendFile(FileChannel file, long position, long count) throws IOException {
+        if (count < PARALLEL_THRESHOLD) {
+            while (count > 0) {
+                int length = (int) Math.min(RECORD_SIZE, count);
+                sealed.clear();
+                sealed.position(HEADER_BYTES).limit(HEADER_BYTES + length);
+                readFully(file, sealed, position);
+                sealed.putInt(0, length);
+                seal(sealed, length, sendSequence++);
+                writeFully(sealed);
+                position += length;
+                count -= length;
+            }
+            return;
+        }
+        BlockingQueue<ByteBuffer> buffers = newBufferPool();
+        ArrayDeque<CompletableFuture<ByteBuffer>> inFlight = new ArrayDeque<>();
+        long end = position + count;
+        try {
+            while (position < end || !inFlight.isEmpty()) {
+                while (position < end && inFlight.size() < WINDOW) {
+                    int length = (int) Math.min(RECORD_SIZE, end - position);
+                    long recordPosition = position;
+                    long sequence = sendSequence++;
+                    ByteBuffer record = buffers.take();
+                    inFlight.add(CompletableFuture.supplyAsync(() -> {
+                        record.clear();
+                        record.position(HEADER_BYTES).limit(HEADER_BYTES + length);
+                        try {
+                            readFully(file, record, recordPosition);
+                            record.putInt(0, length);
+                            seal(record, length, sequence);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                        return record;
+                    }, cryptoPool));
+                    position += length;
+                }
+                ByteBuffer record = inFlight.remove().join();
+                writeFully(record);
+                buffers.add(record);
+            }
+        } catch (CompletionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending", e);
+        } finally {
+            for (CompletableFuture<ByteBuffer> task : inFlight) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Receives exactly {@code count} bytes into {@code file} at {@code position}. Whole records
+     * that fall inside the range are decrypted in parallel and written straight to the file.
+     */
+    void receiveFile(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        position += drainOpened(file, position, count);
+        BlockingQueue<ByteBuffer> buffers = end - position >= PARALLEL_THRESHOLD ? newBufferPool() : null;
+        ArrayDeque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+        try {
+            while (position < end) {
+                int length = readHeader();
+                if (length < 0) {
+                    throw new EOFException("Connection closed with " + (end - position) + " bytes outstanding");
+                }
+                if (buffers == null || length > end - position) {
+                    readBody(opened, length);
+                    position += drainOpened(file, position, end - position);
+                    continue;
+                }
+                if (inFlight.size() >= WINDOW) {
+                    inFlight.remove().join();
+                }
+                ByteBuffer record = buffers.take();
+                readBody(record, length);
+                long sequence = receiveSequence++;
+                long recordPosition = position;
+                inFlight.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        open(record, length, sequence);
+                        while (record.hasRemaining()) {
+                            file.write(record, recordPosition + (length - record.remaining()));
+                        }
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    } finally {
+                        buffers.add(record);
+                    }
+                }, cryptoPool));
+                position += length;
+            }
+            while (!inFlight.isEmpty()) {
+                inFlight.remove().join();
+            }
+        } catch (CompletionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while receiving", e);
+        }
+    }
+
+    /** Receives into {@code file} until the peer closes the connection. Returns the bytes written. */
+    long receiveToEnd(FileChannel file, long position) throws IOException {
+        long start = position;
+        position += drainOpened(file, position, Long.MAX_VALUE);
+        while (readRecord()) {
+            position += drainOpened(file, position, Long.MAX_VALUE);
+        }
+        return position - start;
+    }
+
+    private BlockingQueue<ByteBuffer> newBufferPool() {
+        BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(WINDOW + 1);
+        for (int i = 0; i <= WINDOW; i++) {
+            buffers.add(ByteBuffer.allocate(HEADER_BYTES + RECORD_SIZE + TAG_BYTES));
+        }
+        return buffers;
+    }
+
+    /** Reads and decrypts the next record into {@code opened}; false at end of stream. */
+    private boolean readRecord() throws IOException {
+        int length = readHeader();
+        if (length < 0) {
+            ended = true;
+            return false;
+        }
+        readBody(opened, length);
+        return true;
+    }
+
+    private int readHeader() throws IOException {
+        header.clear();
+        while (header.hasRemaining()) {
+            if (readSocket(header) < 0) {
+                if (header.position() == 0) {
+                    return -1;
+                }
+                throw new EOFException("Connection closed inside a record");
+            }
+        }
+        int length = header.getInt(0);
+        if (length <= 0 || length > RECORD_SIZE) {
+            throw new IOException("Bad record length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Reads a record body of {@code length} plaintext bytes into {@code target} (after a copy of
+     * the header), decrypting it in place when {@code target} is {@link #opened}.
+     */
+    private void readBody(ByteBuffer target, int length) throws IOException {
+        target.clear();
+        target.put(header.array(), 0, HEADER_BYTES);
+        target.limit(HEADER_BYTES + length + TAG_BYTES);
+        while (target.hasRemaining()) {
+            if (readSocket(target) < 0) {
+                throw new EOFException("Connection closed inside a record");
+            }
+        }
+        if (target == opened) {
+            open(opened, length, receiveSequence++);
+        }
+    }
+
+    /** Encrypts {@code record}'s payload in place; leaves it flipped, ready to write. */
+    private void seal(ByteBuffer record, int length, long sequence) throws IOException {
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, sendKey, new GCMParameterSpec(TAG_BITS, nonce(sendIv, sequence)));
+            cipher.updateAAD(record.array(), 0, HEADER_BYTES);
+            int sealedLength = cipher.doFinal(record.array(), HEADER_BYTES, length, record.array(), HEADER_BYTES);
+            record.limit(HEADER_BYTES + sealedLength).position(0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Encryption failed: " + e.getMessage(), e);
+        }
+    }
+
+    /** Decrypts and authenticates a whole record in place; leaves the buffer holding the plaintext. */
+    private void open(ByteBuffer record, int length, long sequence) throws IOException {
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, receiveKey, new GCMParameterSpec(TAG_BITS, nonce(receiveIv, sequence)));
+            cipher.updateAAD(record.array(), 0, HEADER_BYTES);
+            cipher.doFinal(record.array(), HEADER_BYTES, length + TAG_BYTES, record.array(), HEADER_BYTES);
+            record.limit(HEADER_BYTES + length).position(HEADER_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Record " + sequence + " failed authentication", e);
+        }
+    }
+
+    private static byte[] nonce(byte[] iv, long sequence) {
+        byte[] nonce = iv.clone();
+        for (int i = 0; i < 8; i++) {
+            nonce[nonce.length - 1 - i] ^= (byte) (sequence >>> (8 * i));
+        }
+        return nonce;
+    }
+
+    private long drainOpened(FileChannel file, long position, long limit) throws IOException {
+        if (!opened.hasRemaining()) {
+            return 0;
+        }
+        ByteBuffer slice = opened.slice();
+        if (slice.remaining() > limit) {
+            slice.limit((int) limit);
+        }
+        int n = slice.remaining();
+        while (slice.hasRemaining()) {
+            file.write(slice, position + (n - slice.remaining()));
+        }
+        opened.position(opened.position() + n);
+        return n;
+    }
+
+    /** Reads ciphertext, starting with whatever arrived before the switch to encrypted records. */
+    private int readSocket(ByteBuffer target) throws IOException {
+        if (pending.hasRemaining()) {
+            int n = Math.min(pending.remaining(), target.remaining());
+            ByteBuffer slice = pending.slice();
+            slice.limit(n);
+            target.put(slice);
+            pending.position(pending.position() + n);
+            return n;
+        }
+        int n = socket.read(target);
+        if (n > 0) {
+            counters.bytesIn.add(n);
+        }
+        return n;
+    }
+
+    private void writeFully(ByteBuffer record) throws IOException {
+        while (record.hasRemaining()) {
+            counters.bytesOut.add(socket.write(record));
+        }
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = file.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("File shrank while sending");
+            }
+            position += n;
+        }
+    }
+
+    private static IOException unwrap(CompletionException e) {
+        return e.getCause() instanceof IOException ? (IOException) e.getCause()
+                : new IOException(e.getCause().getMessage(), e.getCause());
+    }
+}
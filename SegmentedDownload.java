@@ -0,0 +1,510 @@
+package rkayyo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads one file as fixed-size segments fetched in parallel over several framed connections
+ * (dedicated TCP connections rather than session streams, so they don't share one congestion window),
+ * from every peer that grants the request. Segments are written in place into a preallocated part
+ * file with positional writes and recorded in a {@link TransferJournal}; a segment whose connection
+ * fails goes back on the queue for another stream to pick up, and segments already journaled by an
+ * earlier attempt are not fetched again.
+ *
+ * Peers that support it send every {@link MerkleTree} chunk with its hash ({@link VerifiedRange}).
+ * Before any range is requested the file's leaves are fetched from one of them and checked against
+ * the root the peers advertise, so each chunk is checked against its leaf as it arrives rather than
+ * only against its sender's trailer: a chunk that arrives corrupt is fetched again on its own, and
+ * a peer that keeps sending corrupt chunks is dropped. Before the file is moved into place its root
+ * is checked too, which covers segments from an earlier attempt or from peers without verified
+ * ranges; chunks that don't match their leaf are fetched again from a verified peer.
+ */
+class SegmentedDownload {
+    static final long SEGMENT_SIZE = 8L << 20;
+    private static final int MAX_ROUNDS = 3;
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
+    /** How long to keep asking for leaves or a root while a peer is still hashing its copy. */
+    private static final long HASH_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final long HASH_POLL_MILLIS = 250;
+
+    /** A peer that granted the download. */
+    static final class Source {
+        final String peerKey;
+        final String host;
+        final int port;
+        PeerConnection grantConnection;
+        String token;
+        long size;
+        /** Whether the peer sends verified ranges, and the file's root if it already knew it. */
+        boolean verified;
+        byte[] root;
+
+        Source(String peerKey) {
+            this.peerKey = peerKey;
+            String[] parts = peerKey.split(":");
+            this.host = parts[0];
+            this.port = Integer.parseInt(parts[1]);
+        }
+    }
+
+    private final String filename;
+    private final Path target;
+    private final Path stateDir;
+    private final SessionPool.Connector connector;
+    private final int streamsPerPeer;
+    private final List<Source> sources = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Integer> segments = new ConcurrentLinkedQueue<>();
+    private final Set<Source> failedSources = ConcurrentHashMap.newKeySet();
+    private long size;
+    private byte[] root;
+    private MerkleTree tree;
+    /** The leaves the peers advertise, once one has sent them; chunks are checked against these. */
+    private MerkleTree expected;
+
+    SegmentedDownload(String filename, Path target, Path stateDir, SessionPool.Connector connector, int streamsPerPeer) {
+        this.filename = filename;
+        this.target = target;
+        this.stateDir = stateDir;
+        this.connector = connector;
+        this.streamsPerPeer = Math.max(1, streamsPerPeer);
+    }
+
+    /** Asks every candidate peer for a grant and keeps the ones serving the agreed file content. */
+    int requestGrants(List<String> peerKeys) throws InterruptedException {
+        ExecutorService grantPool = Executors.newFixedThreadPool(Math.max(1, peerKeys.size()));
+        List<Source> granted = new ArrayList<>();
+        try {
+            List<Future<Source>> futures = new ArrayList<>();
+            for (String peerKey : peerKeys) {
+                futures.add(grantPool.submit(() -> requestGrant(new Source(peerKey))));
+            }
+            for (Future<Source> future : futures) {
+                try {
+                    Source source = future.get();
+                    if (source != null) {
+                        granted.add(source);
+                    }
+                } catch (ExecutionException e) {
+                    System.out.println("Grant request failed: " + e.getCause().getMessage());
+                }
+            }
+        } finally {
+            grantPool.shutdown();
+        }
+
+        // Peers can only share the work if they serve the same content. The most common size is
+        // taken as the reference copy and, among peers that already know their copy's root, the
+        // most common root; peers that haven't hashed their copy yet are checked at the end.
+        Map<Long, Integer> sizeVotes = new HashMap<>();
+        for (Source source : granted) {
+            sizeVotes.merge(source.size, 1, Integer::sum);
+        }
+        long agreedSize = mostVoted(sizeVotes, -1L);
+        Map<String, Integer> rootVotes = new HashMap<>();
+        for (Source source : granted) {
+            if (source.size == agreedSize && source.root != null) {
+                rootVotes.merge(MerkleTree.toHex(source.root), 1, Integer::sum);
+            }
+        }
+        String agreedRoot = mostVoted(rootVotes, null);
+        for (Source source : granted) {
+            if (source.size != agreedSize) {
+                System.out.println("Skipping " + source.peerKey + ": its copy of " + filename + " differs (" + source.size + " bytes)");
+                closeQuietly(source.grantConnection);
+            } else if (source.root != null && !MerkleTree.toHex(source.root).equals(agreedRoot)) {
+                System.out.println("Skipping " + source.peerKey + ": its copy of " + filename + " differs (root "
+                        + MerkleTree.toHex(source.root) + ")");
+                closeQuietly(source.grantConnection);
+            } else {
+                sources.add(source);
+            }
+        }
+        size = agreedSize;
+        root = agreedRoot == null ? null : MerkleTree.fromHex(agreedRoot);
+        return sources.size();
+    }
+
+    /**
+     * Runs the download; returns true once every segment is on disk and the file has been moved
+     * into place. On failure the progress stays journaled for the next attempt.
+     */
+    boolean run() throws IOException, InterruptedException {
+        if (sources.isEmpty()) {
+            return false;
+        }
+        try {
+            for (Source source : sources) {
+                if (source.verified) {
+                    tree = new MerkleTree(size, 0);
+                    break;
+                }
+            }
+            if (tree != null) {
+                fetchExpected(true);
+            }
+            String journalRoot = root == null ? null : "root " + MerkleTree.toHex(root);
+            try (TransferJournal journal = TransferJournal.open(stateDir, filename, size, SEGMENT_SIZE, journalRoot)) {
+                int segmentCount = journal.segmentCount();
+                for (int i = 0; i < segmentCount; i++) {
+                    if (!journal.isDone(i)) {
+                        segments.add(i);
+                    }
+                }
+                if (journal.completedSegments() > 0) {
+                    System.out.println("Resuming " + filename + ": " + journal.completedSegments() + "/" + segmentCount
+                            + " segments already received");
+                }
+
+                int streams = sources.size() * streamsPerPeer;
+                System.out.println("Downloading " + filename + " (" + size + " bytes, " + segments.size() + " segments) from "
+                        + sources.size() + " peer(s) over " + streams + " connection(s)");
+                // A segment requeued by a failing stream after the others have drained the queue is
+                // picked up by another round over the peers that are still healthy.
+                for (int round = 0; round < MAX_ROUNDS && !segments.isEmpty(); round++) {
+                    boolean firstRound = round == 0;
+                    ExecutorService workers = Executors.newFixedThreadPool(streams);
+                    try {
+                        for (Source source : sources) {
+                            if (failedSources.contains(source)) {
+                                continue;
+                            }
+                            for (int i = 0; i < streamsPerPeer; i++) {
+                                PeerConnection first = firstRound && i == 0 ? source.grantConnection : null;
+                                workers.execute(() -> fetchSegments(source, first, journal));
+                            }
+                        }
+                        workers.shutdown();
+                        while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                            // Workers stop once the queue is drained or their connection fails.
+                        }
+                    } finally {
+                        workers.shutdownNow();
+                    }
+                }
+                if (!journal.isComplete()) {
+                    System.out.println("Stopped " + filename + " at " + journal.completedSegments() + "/" + segmentCount
+                            + " segments; request it again to resume");
+                    return false;
+                }
+                if (tree != null && !verifyRoot(journal)) {
+                    return false;
+                }
+                journal.complete(target);
+                return true;
+            }
+        } finally {
+            for (Source source : sources) {
+                closeQuietly(source.grantConnection);
+            }
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Gets the file's leaves from a verified peer, over its grant connection before the download
+     * or over a new one afterwards. They must add up to the root agreed at grant time, if the peers
+     * knew it; otherwise their root becomes the agreed one. Peers from before REQUEST_LEAVES are
+     * asked for the root alone. A peer still hashing its copy is asked again until {@link
+     * #HASH_WAIT_MILLIS} have passed.
+     */
+    private void fetchExpected(boolean overGrantConnections) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + HASH_WAIT_MILLIS;
+        for (Source source : sources) {
+            if (!source.verified || failedSources.contains(source)) {
+                continue;
+            }
+            PeerConnection conn = overGrantConnections ? source.grantConnection : null;
+            try {
+                if (conn == null) {
+                    conn = connector.connect(source.host, source.port);
+                }
+                MerkleTree leaves = requestLeaves(source, conn, deadline);
+                if (leaves != null && root != null && !MerkleTree.matches(root, leaves.root())) {
+                    System.out.println("Skipping " + source.peerKey + ": its chunk hashes for " + filename
+                            + " don't match root " + MerkleTree.toHex(root));
+                    failedSources.add(source);
+                } else if (leaves != null) {
+                    expected = leaves;
+                    root = leaves.root();
+                    return;
+                } else if (root == null) {
+                    root = requestRoot(source, conn, deadline);
+                }
+            } catch (IOException e) {
+                failedSources.add(source);
+                System.out.println("Error asking " + source.peerKey + " for the hashes of " + filename + ": " + e.getMessage());
+            } finally {
+                if (!overGrantConnections) {
+                    closeQuietly(conn);
+                }
+            }
+        }
+    }
+
+    /** The peer's leaves for the file, or null if it doesn't send them or hasn't hashed its copy in time. */
+    private MerkleTree requestLeaves(Source source, PeerConnection conn, long deadline) throws IOException, InterruptedException {
+        String response = askUntilHashed(conn, "REQUEST_LEAVES " + source.token, "LEAVES -", deadline);
+        if (!response.startsWith("LEAVES ") || response.equals("LEAVES -")) {
+            System.out.println("Peer " + source.peerKey + " did not send the chunk hashes of " + filename + ": " + response);
+            return null;
+        }
+        MerkleTree leaves = new MerkleTree(size, 0);
+        int count;
+        try {
+            count = Integer.parseInt(response.substring("LEAVES ".length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("unexpected reply to leaves request: " + response);
+        }
+        if (count != leaves.chunkCount()) {
+            throw new IOException("sent " + count + " chunk hashes for " + leaves.chunkCount() + " chunks");
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(count * MerkleTree.HASH_SIZE);
+        conn.readFully(bytes);
+        bytes.flip();
+        for (int chunk = 0; chunk < count; chunk++) {
+            byte[] leaf = new byte[MerkleTree.HASH_SIZE];
+            bytes.get(leaf);
+            leaves.setLeaf(chunk, leaf);
+        }
+        return leaves;
+    }
+
+    private byte[] requestRoot(Source source, PeerConnection conn, long deadline) throws IOException, InterruptedException {
+        String response = askUntilHashed(conn, "REQUEST_ROOT " + source.token, "ROOT -", deadline);
+        byte[] hash = response.startsWith("ROOT ") ? MerkleTree.fromHex(response.substring("ROOT ".length())) : null;
+        if (hash == null) {
+            System.out.println("Peer " + source.peerKey + " did not report the root of " + filename + ": " + response);
+        }
+        return hash;
+    }
+
+    /** Sends {@code request} again while the reply is {@code pending}, meaning the peer is still hashing. */
+    private static String askUntilHashed(PeerConnection conn, String request, String pending, long deadline)
+            throws IOException, InterruptedException {
+        while (true) {
+            conn.writeLine(request);
+            String response = conn.readLine();
+            if (response == null) {
+                throw new IOException("connection closed");
+            }
+            if (!response.equals(pending) || System.currentTimeMillis() >= deadline) {
+                return response;
+            }
+            Thread.sleep(HASH_POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Checks the finished part file against the root the peers advertised, asking for the leaves
+     * again if no peer had hashed its copy in time before the download. Leaves of segments received
+     * without hashes (from an earlier attempt or a peer without verified ranges) are computed from
+     * the part file first, and chunks that don't match their leaf are fetched again. Only a part
+     * file that doesn't match a root with no leaves to repair it by is discarded; if no peer can
+     * say what it should be, or the repair fails, it is kept so a later attempt can check it.
+     */
+    private boolean verifyRoot(TransferJournal journal) throws IOException, InterruptedException {
+        VerifiedRange.fillIn(journal.data(), tree);
+        if (expected == null) {
+            fetchExpected(false);
+        }
+        if (root == null) {
+            System.out.println("Could not verify " + filename + ": no peer reported its root; request it again to retry");
+            return false;
+        }
+        if (!MerkleTree.matches(root, tree.root())) {
+            List<Integer> mismatching = expected == null ? Collections.emptyList() : mismatchingChunks();
+            if (mismatching.isEmpty()) {
+                System.out.println("Discarding " + filename + ": its root " + tree.rootHex() + " does not match "
+                        + MerkleTree.toHex(root));
+                journal.discard();
+                return false;
+            }
+            System.out.println(mismatching.size() + " chunk(s) of " + filename + " don't match their hashes; fetching them again");
+            if (!refetch(mismatching, journal) || !MerkleTree.matches(root, tree.root())) {
+                System.out.println("Could not repair " + filename + "; request it again to retry");
+                return false;
+            }
+        }
+        System.out.println("Verified " + filename + " (root " + tree.rootHex() + ")");
+        return true;
+    }
+
+    private List<Integer> mismatchingChunks() {
+        List<Integer> chunks = new ArrayList<>();
+        for (int chunk = 0; chunk < tree.chunkCount(); chunk++) {
+            if (!MerkleTree.matches(expected.leaf(chunk), tree.leaf(chunk))) {
+                chunks.add(chunk);
+            }
+        }
+        return chunks;
+    }
+
+    /** Fetches {@code chunks} again as verified ranges, from the first healthy peer that delivers them all. */
+    private boolean refetch(List<Integer> chunks, TransferJournal journal) {
+        for (Source source : sources) {
+            if (!source.verified || failedSources.contains(source)) {
+                continue;
+            }
+            PeerConnection conn = null;
+            try {
+                conn = connector.connect(source.host, source.port);
+                for (int chunk : chunks) {
+                    fetchVerified(source, conn, journal, MerkleTree.chunkOffset(chunk), tree.chunkLength(chunk));
+                }
+                return true;
+            } catch (IOException e) {
+                failedSources.add(source);
+                System.out.println("Error fetching chunks of " + filename + " from " + source.peerKey + ": " + e.getMessage());
+            } finally {
+                closeQuietly(conn);
+            }
+        }
+        return false;
+    }
+
+    private Source requestGrant(Source source) {
+        PeerConnection conn = null;
+        try {
+            conn = connector.connect(source.host, source.port);
+            if (!conn.isFramed()) {
+                System.out.println("Peer " + source.peerKey + " does not support segmented downloads");
+                conn.close();
+                return null;
+            }
+            conn.writeLine("REQUEST_GRANT_VERIFIED " + filename);
+            String response = conn.readLine();
+            source.verified = response != null && !response.startsWith("ERROR");
+            if (!source.verified) {
+                // A peer from before verified ranges; plain segments are checked against the root at the end.
+                conn.writeLine("REQUEST_GRANT " + filename);
+                response = conn.readLine();
+            }
+            if (response == null || !response.startsWith("GRANT ")) {
+                System.out.println("Request for " + filename + " denied by " + source.peerKey);
+                conn.close();
+                return null;
+            }
+            String[] parts = response.split(" ", source.verified ? 5 : 4);
+            source.token = parts[1];
+            source.size = Long.parseLong(parts[2]);
+            source.root = source.verified ? MerkleTree.fromHex(parts[3]) : null;
+            source.grantConnection = conn;
+            return source;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error requesting " + filename + " from " + source.peerKey + ": " + e.getMessage());
+            closeQuietly(conn);
+            return null;
+        }
+    }
+
+    private void fetchSegments(Source source, PeerConnection conn, TransferJournal journal) {
+        Integer segment = null;
+        try {
+            if (conn == null) {
+                conn = connector.connect(source.host, source.port);
+                if (!conn.isFramed()) {
+                    throw new IOException("peer dropped framed protocol");
+                }
+            }
+            while ((segment = segments.poll()) != null) {
+                long offset = segment * SEGMENT_SIZE;
+                long length = Math.min(SEGMENT_SIZE, size - offset);
+                if (source.verified) {
+                    fetchVerified(source, conn, journal, offset, length);
+                } else {
+                    long requested = System.nanoTime();
+                    conn.writeLine("REQUEST_RANGE " + source.token + " " + offset + " " + length);
+                    String response = conn.readLine();
+                    PeerMetrics.GLOBAL.timeToFirstByte.recordMicrosSince(requested);
+                    if (response == null || !response.equals("RANGE " + length)) {
+                        throw new IOException("unexpected reply to range request: " + response);
+                    }
+                    conn.receiveFile(journal.data(), offset, length);
+                }
+                journal.markDone(segment);
+                segment = null;
+            }
+        } catch (IOException e) {
+            failedSources.add(source);
+            System.out.println("Connection to " + source.peerKey + " failed during " + filename + ": " + e.getMessage());
+        } finally {
+            if (segment != null) {
+                segments.add(segment);
+            }
+            closeQuietly(conn);
+        }
+    }
+
+    /**
+     * Fetches a range as verified chunks, fetching any that arrive corrupt again one at a time.
+     * Gives up with an IOException, dropping the peer, if a chunk is still corrupt after {@link
+     * #MAX_CHUNK_ATTEMPTS} attempts.
+     */
+    private void fetchVerified(Source source, PeerConnection conn, TransferJournal journal, long offset, long length)
+            throws IOException {
+        List<Integer> corrupt = requestVerified(source, conn, journal, offset, length);
+        for (int attempt = 1; !corrupt.isEmpty(); attempt++) {
+            if (attempt == MAX_CHUNK_ATTEMPTS) {
+                throw new IOException("chunk " + corrupt.get(0) + " still corrupt after " + attempt + " attempts");
+            }
+            List<Integer> stillCorrupt = new ArrayList<>();
+            for (int chunk : corrupt) {
+                System.out.println("Chunk " + chunk + " of " + filename + " from " + source.peerKey + " failed verification; fetching it again");
+                stillCorrupt.addAll(requestVerified(source, conn, journal, MerkleTree.chunkOffset(chunk), tree.chunkLength(chunk)));
+            }
+            corrupt = stillCorrupt;
+        }
+    }
+
+    private List<Integer> requestVerified(Source source, PeerConnection conn, TransferJournal journal, long offset, long length)
+            throws IOException {
+        long requested = System.nanoTime();
+        conn.writeLine("REQUEST_RANGE " + source.token + " " + offset + " " + length + " VERIFY");
+        String response = conn.readLine();
+        PeerMetrics.GLOBAL.timeToFirstByte.recordMicrosSince(requested);
+        if (!Objects.equals(response, "VERIFIED_RANGE " + length + " " + MerkleTree.CHUNK_SIZE)) {
+            throw new IOException("unexpected reply to range request: " + response);
+        }
+        return VerifiedRange.receive(conn, journal.data(), offset, length, tree, expected);
+    }
+
+    private static <T> T mostVoted(Map<T, Integer> votes, T none) {
+        T winner = none;
+        int most = 0;
+        for (Map.Entry<T, Integer> vote : votes.entrySet()) {
+            if (vote.getValue() > most) {
+                winner = vote.getKey();
+                most = vote.getValue();
+            }
+        }
+        return winner;
+    }
+
+    private static void closeQuietly(PeerConnection conn) {
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (IOException ignored) {
+                // Nothing useful to do with a failed close.
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package rkayyo;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One long-lived {@link MuxSession} per peer, keyed by {@code host:port}. Commands open a stream
+ * on the peer's session instead of a new TCP connection; the session is re-established on the
+ * next use after it breaks, or after it was closed for being idle for {@link #IDLE_TIMEOUT_SECONDS}.
+ */
+class SessionPool {
+    /** Opens a raw connection, negotiating the framed protocol when the peer supports it. */
+    interface Connector {
+        PeerConnection connect(String host, int port) throws IOException;
+    }
+
+    private static final class Slot {
+        MuxSession session;
+    }
+
+    static final long IDLE_TIMEOUT_SECONDS = 60;
+
+    private final Connector connector;
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+    SessionPool(Connector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Opens a stream to the peer. Peers that can't multiplex get a connection of their own, which
+     * is a legacy connection for peers that don't speak the framed protocol at all.
+     */
+    PeerStream open(String host, int port) throws IOException {
+        String peerKey = host + ":" + port;
+        Slot slot = slots.computeIfAbsent(peerKey, k -> new Slot());
+        MuxSession session;
+        synchronized (slot) {
+            if (slot.session == null || !slot.session.isOpen()) {
+                slot.session = null;
+                PeerConnection conn = connector.connect(host, port);
+                if (!conn.isFramed()) {
+                    return conn;
+                }
+                conn.writeLine(MuxSession.MUX_HELLO);
+                if (!MuxSession.MUX_HELLO.equals(conn.readLine())) {
+                    return conn;
+                }
+                slot.session = new MuxSession(conn, null);
+                slot.session.closeWhenIdle(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                slot.session.start();
+            }
+            session = slot.session;
+        }
+        return session.openStream();
+    }
+
+    /** Closes the session to a peer that went away. */
+    void close(String peerKey) {
+        Slot slot = slots.remove(peerKey);
+        if (slot != null) {
+            synchronized (slot) {
+                if (slot.session != null) {
+                    slot.session.close();
+                }
+            }
+        }
+    }
+
+    void closeAll() {
+        for (String peerKey : slots.keySet()) {
+            close(peerKey);
+        }
+    }
+}
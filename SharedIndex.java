@@ -0,0 +1,258 @@
+package rkayyo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory listing of the shared directory, kept current by a WatchService instead of a
+ * directory scan per LIST_FILES. Every change gets the next version number, so a peer that has
+ * seen version N only needs the entries changed after N. Deletions are kept as tombstones (up to
+ * a limit) so they can be reported in a delta too.
+ *
+ * Version numbers start over whenever the index is created, so they are qualified by a random
+ * epoch chosen at the same time; a peer holding a version from another epoch (from before we
+ * restarted) gets the full listing.
+ */
+class SharedIndex implements Closeable {
+    private static final int MAX_TOMBSTONES = 10_000;
+
+    /** One file as listed; {@code deleted} entries are tombstones. */
+    static final class Entry {
+        final String name;
+        final long size;
+        final long modified;
+        final long version;
+        final boolean deleted;
+        private MerkleTree tree;
+
+        Entry(String name, long size, long modified, long version, boolean deleted) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.version = version;
+            this.deleted = deleted;
+        }
+
+        /**
+         * Hash tree of this version of the file, filled in as its chunks are served. A change to
+         * the file replaces the entry, so cached leaves never outlive the content they describe.
+         */
+        synchronized MerkleTree tree() {
+            if (tree == null) {
+                tree = new MerkleTree(size, modified);
+            }
+            return tree;
+        }
+    }
+
+    /** Result of {@link #changesSince}: either a delta or, if the peer is too far behind, everything. */
+    static final class Changes {
+        final long version;
+        final boolean full;
+        final List<Entry> entries;
+
+        Changes(long version, boolean full, List<Entry> entries) {
+            this.version = version;
+            this.full = full;
+            this.entries = entries;
+        }
+    }
+
+    private final Path root;
+    private final String epoch = Long.toHexString(new SecureRandom().nextLong());
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile long version;
+    private volatile long prunedUpTo;
+    private int tombstones;
+    private WatchService watcher;
+
+    SharedIndex(Path root) {
+        this.root = root;
+    }
+
+    /** Scans the directory once and starts watching it for changes. */
+    void start() throws IOException {
+        watcher = root.getFileSystem().newWatchService();
+        root.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        rescan();
+        Thread watchThread = new Thread(this::watch, "shared-index-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    long version() {
+        return version;
+    }
+
+    String epoch() {
+        return epoch;
+    }
+
+    /** Live entries, sorted by name. */
+    List<Entry> snapshot() {
+        List<Entry> live = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (!entry.deleted) {
+                live.add(entry);
+            }
+        }
+        live.sort(Comparator.comparing(e -> e.name));
+        return live;
+    }
+
+    Entry get(String name) {
+        Entry entry = entries.get(name);
+        return entry == null || entry.deleted ? null : entry;
+    }
+
+    /**
+     * Entries changed after version {@code since} of {@code sinceEpoch}. If the version is from
+     * another epoch or from the future, or tombstones the peer would need have been pruned, the
+     * full listing is returned.
+     */
+    Changes changesSince(String sinceEpoch, long since) {
+        // Writers publish a version only after its entry is in the map, so every entry up to
+        // current is visible below; newer ones are left for the next delta.
+        long current = version;
+        if (!epoch.equals(sinceEpoch) || since <= 0 || since < prunedUpTo || since > current) {
+            return new Changes(current, true, snapshot());
+        }
+        List<Entry> changed = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.version > since && entry.version <= current) {
+                changed.add(entry);
+            }
+        }
+        changed.sort(Comparator.comparingLong(e -> e.version));
+        return new Changes(current, false, changed);
+    }
+
+    /** Re-reads one name after a change event. */
+    void refresh(String name) {
+        if (name.startsWith(".")) {
+            return;
+        }
+        Path path = root.resolve(name);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attrs.isRegularFile()) {
+                update(name, attrs.size(), attrs.lastModifiedTime().toMillis());
+                return;
+            }
+        } catch (IOException e) {
+            // Gone (or unreadable) by the time we looked; treat as deleted.
+        }
+        remove(name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    private synchronized void update(String name, long size, long modified) {
+        Entry existing = entries.get(name);
+        if (existing != null && !existing.deleted && existing.size == size && existing.modified == modified) {
+            return;
+        }
+        if (existing != null && existing.deleted) {
+            tombstones--;
+        }
+        long next = version + 1;
+        entries.put(name, new Entry(name, size, modified, next, false));
+        version = next;
+    }
+
+    private synchronized void remove(String name) {
+        Entry existing = entries.get(name);
+        if (existing == null || existing.deleted) {
+            return;
+        }
+        long next = version + 1;
+        entries.put(name, new Entry(name, 0, 0, next, true));
+        version = next;
+        if (++tombstones > MAX_TOMBSTONES) {
+            pruneTombstones();
+        }
+    }
+
+    /** Drops the older half of the tombstones; peers older than the last dropped one get a full list. */
+    private void pruneTombstones() {
+        List<Entry> dead = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.deleted) {
+                dead.add(entry);
+            }
+        }
+        dead.sort(Comparator.comparingLong(e -> e.version));
+        List<Entry> pruned = dead.subList(0, dead.size() / 2);
+        if (pruned.isEmpty()) {
+            return;
+        }
+        // Raised before the tombstones go, so a concurrent delta never silently misses one.
+        prunedUpTo = Math.max(prunedUpTo, pruned.get(pruned.size() - 1).version);
+        for (Entry entry : pruned) {
+            entries.remove(entry.name, entry);
+            tombstones--;
+        }
+    }
+
+    private void rescan() throws IOException {
+        Set<String> present = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                present.add(name);
+                refresh(name);
+            }
+        }
+        for (String name : new ArrayList<>(entries.keySet())) {
+            if (!present.contains(name)) {
+                remove(name);
+            }
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                    } else {
+                        refresh(((Path) event.context()).toString());
+                    }
+                }
+                if (!key.reset()) {
+                    System.out.println("Shared directory is no longer being watched: " + root);
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Shutting down.
+        } catch (IOException e) {
+            System.out.println("Shared directory watcher stopped: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package rkayyo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Bookkeeping for one incoming file. Data is written to {@code <name>.part} next to an append-only
+ * {@code <name>.journal} listing the segments that are safely on disk. A segment is only journaled
+ * after its data has been forced, so after a crash or a dropped connection every journaled segment
+ * can be trusted and the transfer resumes from there. When all segments are present the part file
+ * is renamed over the real name in one step, so a truncated file never shows up in the shared
+ * directory.
+ */
+class TransferJournal implements Closeable {
+    private final Path partFile;
+    private final Path journalFile;
+    private final long size;
+    private final long segmentSize;
+    private final int segmentCount;
+    private final BitSet done = new BitSet();
+    private final FileChannel journal;
+    private final FileLock lock;
+    private final FileChannel data;
+
+    private TransferJournal(Path partFile, Path journalFile, long size, long segmentSize,
+                            FileChannel journal, FileLock lock) throws IOException {
+        this.partFile = partFile;
+        this.journalFile = journalFile;
+        this.size = size;
+        this.segmentSize = segmentSize;
+        this.segmentCount = (int) ((size + segmentSize - 1) / segmentSize);
+        this.journal = journal;
+        this.lock = lock;
+        try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "rw")) {
+            if (raf.length() != size) {
+                raf.setLength(size);
+            }
+        }
+        this.data = FileChannel.open(partFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens the journal for {@code filename} in {@code stateDir}, picking up earlier progress when
+     * it was recorded for the same size and segment size, and starting over otherwise.
+     */
+    static TransferJournal open(Path stateDir, String filename, long size, long segmentSize) throws IOException {
+        return open(stateDir, filename, size, segmentSize, null);
+    }
+
+    /**
+     * Like {@link #open(Path, String, long, long)}, but progress is only picked up if it was
+     * recorded for the same {@code identity} too (e.g. {@code "root <hex>"} or {@code "modified
+     * <millis>"}), so segments of an older version of the file are never mixed with a newer one.
+     * A null identity matches only progress recorded without one.
+     */
+    static TransferJournal open(Path stateDir, String filename, long size, long segmentSize, String identity) throws IOException {
+        Path partFile = stateDir.resolve(filename + ".part");
+        Path journalFile = stateDir.resolve(filename + ".journal");
+        Files.createDirectories(partFile.getParent());
+        FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = journal.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            journal.close();
+            throw new IOException("A transfer of " + filename + " is already in progress");
+        }
+
+        String header = "size " + size + " segment " + segmentSize + (identity == null ? "" : " " + identity);
+        BitSet recovered = new BitSet();
+        // Read through the locked channel itself; on Windows the lock blocks other handles.
+        ByteBuffer contents = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, journal.size()));
+        while (contents.hasRemaining() && journal.read(contents, contents.position()) > 0) {
+            // Keep reading until the whole journal is in memory.
+        }
+        String text = new String(contents.array(), 0, contents.position(), StandardCharsets.UTF_8);
+        // Only newline-terminated lines count; a torn last line is dropped.
+        String[] lines = text.substring(0, text.lastIndexOf('\n') + 1).split("\n");
+        boolean resumable = header.equals(lines[0]) && Files.exists(partFile);
+        try {
+            for (int i = 1; resumable && i < lines.length; i++) {
+                if (lines[i].startsWith("done ")) {
+                    recovered.set(Integer.parseInt(lines[i].substring("done ".length())));
+                }
+            }
+        } catch (NumberFormatException e) {
+            resumable = false;
+        }
+        if (!resumable) {
+            recovered.clear();
+            journal.truncate(0);
+            Files.deleteIfExists(partFile);
+            append(journal, header);
+            journal.force(false);
+        }
+
+        try {
+            TransferJournal transferJournal = new TransferJournal(partFile, journalFile, size, segmentSize, journal, lock);
+            transferJournal.done.or(recovered);
+            return transferJournal;
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+    }
+
+    /** Channel for positional reads and writes of the part file. */
+    FileChannel data() {
+        return data;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long segmentSize() {
+        return segmentSize;
+    }
+
+    int segmentCount() {
+        return segmentCount;
+    }
+
+    synchronized boolean isDone(int segment) {
+        return done.get(segment);
+    }
+
+    synchronized int completedSegments() {
+        return done.cardinality();
+    }
+
+    synchronized boolean isComplete() {
+        return done.cardinality() == segmentCount;
+    }
+
+    /** Offset up to which every segment is on disk; a single-stream resume restarts here. */
+    synchronized long verifiedOffset() {
+        return Math.min(size, done.nextClearBit(0) * segmentSize);
+    }
+
+    /** Forces the segment's data to disk, then records it as done. */
+    void markDone(int segment) throws IOException {
+        long start = System.nanoTime();
+        data.force(false);
+        PeerMetrics.GLOBAL.diskSync.recordMicrosSince(start);
+        synchronized (this) {
+            if (done.get(segment)) {
+                return;
+            }
+            append(journal, "done " + segment);
+            done.set(segment);
+        }
+    }
+
+    /** Moves the finished part file over {@code target} and removes the journal. */
+    void complete(Path target) throws IOException {
+        if (!isComplete()) {
+            throw new IOException("Transfer incomplete: " + completedSegments() + "/" + segmentCount + " segments");
+        }
+        data.force(true);
+        data.close();
+        try {
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        close();
+        Files.deleteIfExists(journalFile);
+    }
+
+    /** Releases the files and deletes the part file and journal, e.g. when the content failed verification. */
+    void discard() throws IOException {
+        close();
+        Files.deleteIfExists(partFile);
+        Files.deleteIfExists(journalFile);
+    }
+
+    /** Releases the files, keeping the part file and journal so the transfer can resume later. */
+    @Override
+    public void close() throws IOException {
+        try {
+            data.close();
+        } finally {
+            if (lock.isValid()) {
+                lock.release();
+            }
+            journal.close();
+        }
+    }
+
+    private static void append(FileChannel journal, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        long position = journal.size();
+        while (buffer.hasRemaining()) {
+            position += journal.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package rkayyo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Byte ranges sent with a hash trailer after every {@link MerkleTree} chunk, so the receiver can
+ * check each chunk as it lands and ask again for just the chunks that arrived corrupt. Ranges
+ * start on a chunk boundary and end on one or at the end of the file, and travel as bulk traffic.
+ *
+ * Hashing is a pipeline stage of its own on both sides. The sender reads and hashes the next few
+ * chunks on the hash pool while the current one is on the wire (or, when the leaves are already
+ * cached, sends straight from the file with the cached leaf as the trailer); the receiver reads
+ * the next chunk off the connection while earlier ones are hashed and written to disk.
+ *
+ * Whole files are hashed in the background ({@link #fillInLater}) when a peer asks for a root or
+ * the leaves before they are known, so a request never holds its connection while a file is read.
+ */
+class VerifiedRange {
+    private static final int DEPTH = 3;
+    private static final int MAX_SPARE_BUFFERS = 2 * (DEPTH + 1) * Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService hashPool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "chunk-hasher");
+                t.setDaemon(true);
+                return t;
+            });
+    /** Hashes whole files for {@link #fillInLater}, one at a time, so serving chunks isn't starved. */
+    private static final ExecutorService treePool = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "tree-hasher");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Set<MerkleTree> filling = ConcurrentHashMap.newKeySet();
+    /**
+     * Direct chunk buffers returned by finished ranges, reused so ranges don't allocate native
+     * memory each time. At most {@link #MAX_SPARE_BUFFERS} are kept (enough for two ranges per
+     * core); the rest are left to the garbage collector, so a burst of ranges doesn't pin its
+     * buffers for the life of the process.
+     */
+    private static final BlockingQueue<ByteBuffer> spareBuffers = new ArrayBlockingQueue<>(MAX_SPARE_BUFFERS);
+
+    static boolean isAligned(long offset, long length, long size) {
+        return offset % MerkleTree.CHUNK_SIZE == 0 && (length % MerkleTree.CHUNK_SIZE == 0 || offset + length == size);
+    }
+
+    /**
+     * Sends {@code length} bytes of {@code file} from {@code offset}, each chunk followed by its
+     * leaf hash. Leaves computed along the way are recorded in {@code tree}.
+     */
+    static void send(PeerStream conn, FileChannel file, long offset, long length, MerkleTree tree) throws IOException {
+        conn.setTrafficClass(BandwidthScheduler.TrafficClass.BULK);
+        int first = (int) (offset / MerkleTree.CHUNK_SIZE);
+        int end = first + MerkleTree.chunkCount(length);
+        if (tree.covers(offset, length)) {
+            for (int chunk = first; chunk < end; chunk++) {
+                conn.sendFile(file, MerkleTree.chunkOffset(chunk), tree.chunkLength(chunk));
+                conn.write(ByteBuffer.wrap(tree.leaf(chunk)));
+            }
+            return;
+        }
+        BlockingQueue<ByteBuffer> buffers = newBufferPool();
+        ArrayDeque<CompletableFuture<ByteBuffer>> inFlight = new ArrayDeque<>();
+        int next = first;
+        try {
+            while (next < end || !inFlight.isEmpty()) {
+                while (next < end && inFlight.size() < DEPTH) {
+                    int chunk = next++;
+                    ByteBuffer buffer = buffers.take();
+                    inFlight.add(CompletableFuture.supplyAsync(() -> {
+                        int chunkLength = (int) tree.chunkLength(chunk);
+                        buffer.clear().limit(chunkLength);
+                        try {
+                            long position = MerkleTree.chunkOffset(chunk);
+                            while (buffer.hasRemaining()) {
+                                int n = file.read(buffer, position + buffer.position());
+                                if (n < 0) {
+                                    throw new EOFException("File shrank while sending");
+                                }
+                            }
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                        buffer.flip();
+                        byte[] leaf = MerkleTree.hashChunk(buffer);
+                        tree.setLeaf(chunk, leaf);
+                        buffer.limit(chunkLength + MerkleTree.HASH_SIZE).position(chunkLength);
+                        buffer.put(leaf).flip();
+                        return buffer;
+                    }, hashPool));
+                }
+                ByteBuffer buffer = inFlight.remove().join();
+                conn.write(buffer);
+                buffers.add(buffer);
+            }
+        } catch (CompletionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending");
+        } finally {
+            for (CompletableFuture<ByteBuffer> task : inFlight) {
+                task.cancel(false);
+            }
+            release(buffers, inFlight.isEmpty());
+        }
+    }
+
+    /**
+     * Receives a range sent by {@link #send} into {@code out}. Chunks whose data matches their
+     * trailer, and their leaf in {@code expected} where it has one, are written and their leaves
+     * recorded in {@code tree}; the others are left unwritten and returned, so the caller can
+     * fetch them again.
+     */
+    static List<Integer> receive(PeerStream conn, FileChannel out, long offset, long length, MerkleTree tree,
+                                 MerkleTree expected) throws IOException {
+        conn.setTrafficClass(BandwidthScheduler.TrafficClass.BULK);
+        int first = (int) (offset / MerkleTree.CHUNK_SIZE);
+        int end = first + MerkleTree.chunkCount(length);
+        BlockingQueue<ByteBuffer> buffers = newBufferPool();
+        ArrayDeque<CompletableFuture<Integer>> inFlight = new ArrayDeque<>();
+        List<Integer> corrupt = new ArrayList<>();
+        try {
+            for (int chunk = first; chunk < end; chunk++) {
+                if (inFlight.size() >= DEPTH) {
+                    collect(inFlight.remove().join(), corrupt);
+                }
+                int chunkLength = (int) tree.chunkLength(chunk);
+                ByteBuffer buffer = buffers.take();
+                buffer.clear().limit(chunkLength + MerkleTree.HASH_SIZE);
+                conn.readFully(buffer);
+                int index = chunk;
+                inFlight.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        ByteBuffer data = buffer.duplicate();
+                        data.limit(chunkLength).position(0);
+                        byte[] trailer = new byte[MerkleTree.HASH_SIZE];
+                        buffer.position(chunkLength);
+                        buffer.get(trailer);
+                        byte[] leaf = MerkleTree.hashChunk(data);
+                        byte[] known = expected == null ? null : expected.leaf(index);
+                        if (!MerkleTree.matches(trailer, leaf) || (known != null && !MerkleTree.matches(known, leaf))) {
+                            PeerMetrics.GLOBAL.chunksCorrupt.increment();
+                            return index;
+                        }
+                        long position = MerkleTree.chunkOffset(index);
+                        while (data.hasRemaining()) {
+                            out.write(data, position + data.position());
+                        }
+                        tree.setLeaf(index, leaf);
+                        PeerMetrics.GLOBAL.chunksVerified.increment();
+                        return -1;
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    } finally {
+                        buffers.add(buffer);
+                    }
+                }, hashPool));
+            }
+            while (!inFlight.isEmpty()) {
+                collect(inFlight.remove().join(), corrupt);
+            }
+        } catch (CompletionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while receiving");
+        } finally {
+            release(buffers, inFlight.isEmpty());
+        }
+        return corrupt;
+    }
+
+    /** Hashes the chunks of {@code file} that {@code tree} has no leaf for yet, e.g. after a resume. */
+    static void fillIn(FileChannel file, MerkleTree tree) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MerkleTree.CHUNK_SIZE);
+        for (int chunk = 0; chunk < tree.chunkCount(); chunk++) {
+            if (tree.leaf(chunk) != null) {
+                continue;
+            }
+            buffer.clear().limit((int) tree.chunkLength(chunk));
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, MerkleTree.chunkOffset(chunk) + buffer.position()) < 0) {
+                    throw new EOFException("File is shorter than " + tree.size + " bytes");
+                }
+            }
+            buffer.flip();
+            tree.setLeaf(chunk, MerkleTree.hashChunk(buffer));
+        }
+    }
+
+    /**
+     * Starts {@link #fillIn} for {@code file} on the background hasher, unless {@code tree} is
+     * already complete or being filled in.
+     */
+    static void fillInLater(Path file, MerkleTree tree) {
+        if (tree.isComplete() || !filling.add(tree)) {
+            return;
+        }
+        treePool.execute(() -> {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                fillIn(channel, tree);
+            } catch (IOException e) {
+                System.out.println("Could not hash " + file + ": " + e.getMessage());
+            } finally {
+                filling.remove(tree);
+            }
+        });
+    }
+
+    private static void collect(int result, List<Integer> corrupt) {
+        if (result >= 0) {
+            corrupt.add(result);
+        }
+    }
+
+    private static BlockingQueue<ByteBuffer> newBufferPool() {
+        BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(DEPTH + 1);
+        for (int i = 0; i <= DEPTH; i++) {
+            ByteBuffer buffer = spareBuffers.poll();
+            buffers.add(buffer != null ? buffer : ByteBuffer.allocateDirect(MerkleTree.CHUNK_SIZE + MerkleTree.HASH_SIZE));
+        }
+        return buffers;
+    }
+
+    /**
+     * Returns a range's buffers for reuse, unless a cancelled task may still be using one; those
+     * are left to the garbage collector.
+     */
+    private static void release(BlockingQueue<ByteBuffer> buffers, boolean idle) {
+        if (idle) {
+            for (ByteBuffer buffer : buffers) {
+                if (!spareBuffers.offer(buffer)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static IOException unwrap(CompletionException e) {
+        return e.getCause() instanceof IOException ? (IOException) e.getCause()
+                : new IOException(e.getCause().getMessage(), e.getCause());
+    }
+}
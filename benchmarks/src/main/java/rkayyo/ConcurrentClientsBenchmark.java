@@ -0,0 +1,108 @@
+package rkayyo;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many clients hitting one peer at once. Each benchmark thread is a client with its own
+ * connection, or its own stream of one shared multiplexed session when {@code mux} is set. The
+ * thread count can be changed with {@code -t}; the peer serves up to 64 connections.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class ConcurrentClientsBenchmark {
+    private static final int FILES = 1000;
+    private static final int FILE_SIZE = 4096;
+    private static final String PAYLOAD = "payload.bin";
+    private static final long PAYLOAD_SIZE = 1 << 20;
+
+    @State(Scope.Benchmark)
+    public static class Peer {
+        @Param({"false", "true"})
+        boolean mux;
+
+        LoopbackPeer peer;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            Path dir = Files.createTempDirectory("javapeer-concurrent");
+            LoopbackPeer.createFiles(dir, FILES, FILE_SIZE);
+            LoopbackPeer.writeFile(dir.resolve(PAYLOAD), PAYLOAD_SIZE);
+            peer = LoopbackPeer.start(dir);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            peer.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        PeerStream stream;
+        Path target;
+        FileChannel out;
+
+        @Setup(Level.Trial)
+        public void setUp(Peer peer) throws IOException {
+            stream = peer.mux ? peer.peer.openStream() : peer.peer.connect();
+            target = Files.createTempFile("javapeer-client", ".bin");
+            out = FileChannel.open(target, StandardOpenOption.WRITE);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            stream.close();
+            out.close();
+            Files.deleteIfExists(target);
+        }
+    }
+
+    @Benchmark
+    public int listFiles(Client client) throws IOException {
+        client.stream.writeLine("LIST_FILES");
+        int lines = 0;
+        String line;
+        while (!"END".equals(line = client.stream.readLine())) {
+            if (line == null) {
+                throw new IOException("Connection closed before END");
+            }
+            lines++;
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public long requestFile(Client client) throws IOException {
+        client.stream.writeLine("REQUEST_FILE " + PAYLOAD);
+        String response = client.stream.readLine();
+        if (response == null || !response.startsWith("APPROVE ")) {
+            throw new IOException("Unexpected reply: " + response);
+        }
+        long length = Long.parseLong(response.split(" ", 3)[1]);
+        client.stream.receiveFile(client.out, 0, length);
+        return length;
+    }
+}
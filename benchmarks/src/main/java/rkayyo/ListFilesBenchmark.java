@@ -0,0 +1,84 @@
+package rkayyo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LIST_FILES service time as the shared directory grows, plus LIST_FILES_SINCE for a peer that is
+ * already up to date, over one framed connection kept open for the whole run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListFilesBenchmark {
+
+    @Param({"10", "1000", "10000", "100000"})
+    int entries;
+
+    private LoopbackPeer peer;
+    private PeerConnection conn;
+    private String version;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path dir = Files.createTempDirectory("javapeer-list");
+        LoopbackPeer.createFiles(dir, entries, 0);
+        peer = LoopbackPeer.start(dir);
+        conn = peer.connect();
+        conn.writeLine("LIST_FILES_SINCE 0");
+        version = conn.readLine().split(" ")[1];
+        int listed = readUntilEnd();
+        if (listed != entries) {
+            throw new IllegalStateException("Listed " + listed + " of " + entries + " files");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        conn.close();
+        peer.close();
+    }
+
+    @Benchmark
+    public int listFiles() throws IOException {
+        conn.writeLine("LIST_FILES");
+        return readUntilEnd();
+    }
+
+    @Benchmark
+    public int listFilesSinceCurrent() throws IOException {
+        conn.writeLine("LIST_FILES_SINCE " + version);
+        conn.readLine();
+        return readUntilEnd();
+    }
+
+    private int readUntilEnd() throws IOException {
+        int lines = 0;
+        String line;
+        while (!"END".equals(line = conn.readLine())) {
+            if (line == null) {
+                throw new IOException("Connection closed before END");
+            }
+            lines++;
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,143 @@
+package rkayyo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * A {@link JavaPeer} server on loopback for the benchmarks: it serves a temporary directory on a
+ * free port and approves every request, since nobody is at the keyboard. The peer's console
+ * output is discarded unless {@code -Djavapeer.bench.log=true} is set. Connections are plain
+ * framed ones (and the server allows them) unless the peer is started with {@code secure}, in
+ * which case they go through the same encrypted handshake (and session resumption) as real peers
+ * and the server refuses anything unencrypted.
+ *
+ * The server's state is static, so there is one loopback peer per JVM; JMH runs each benchmark
+ * and parameter combination in its own fork.
+ */
+final class LoopbackPeer implements Closeable {
+    static final String HOST = "127.0.0.1";
+
+    final Path dir;
+    final int port;
+    private final Path stateDir;
+    private final ServerSocketChannel server;
+    private final PrintStream originalOut;
+    private final SessionPool sessions;
+    private final boolean secure;
+
+    private LoopbackPeer(Path dir, Path stateDir, ServerSocketChannel server, PrintStream originalOut, boolean secure)
+            throws IOException {
+        this.dir = dir;
+        this.stateDir = stateDir;
+        this.server = server;
+        this.port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        this.originalOut = originalOut;
+        this.secure = secure;
+        this.sessions = new SessionPool(this::openFramed);
+    }
+
+    static LoopbackPeer start(Path dir) throws IOException {
+        return start(dir, false);
+    }
+
+    static LoopbackPeer start(Path dir, boolean secure) throws IOException {
+        PrintStream originalOut = System.out;
+        if (!Boolean.getBoolean("javapeer.bench.log")) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        // Keys and known peers go to a scratch directory rather than the user's own state.
+        Path stateDir = Files.createTempDirectory("javapeer-state");
+        return new LoopbackPeer(dir, stateDir, JavaPeer.startServer(dir, stateDir, 0, (peer, prompt) -> true, !secure),
+                                originalOut, secure);
+    }
+
+    /** A dedicated framed connection, as a single download or an older peer would use. */
+    PeerConnection connect() throws IOException {
+        return openFramed(HOST, port);
+    }
+
+    /** Forgets cached secure sessions, so the next connection does a full handshake. */
+    void forgetSessions() {
+        JavaPeer.sts.forgetSessions();
+    }
+
+    /** A stream on the one multiplexed session shared by every caller. */
+    PeerStream openStream() throws IOException {
+        return sessions.open(HOST, port);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sessions.closeAll();
+        server.close();
+        System.setOut(originalOut);
+        deleteRecursively(dir);
+        deleteRecursively(stateDir);
+    }
+
+    private PeerConnection openFramed(String host, int port) throws IOException {
+        PeerConnection conn = PeerConnection.open(host, port);
+        if (!(secure ? JavaPeer.sts.connect(conn, host + ":" + port) : conn.negotiateFramed())) {
+            conn.close();
+            throw new IOException("Peer did not answer the framed-protocol hello");
+        }
+        return conn;
+    }
+
+    /** Creates {@code count} files of {@code size} bytes each, named {@code file-<n>.dat}. */
+    static void createFiles(Path dir, int count, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(count).nextBytes(content);
+        for (int i = 0; i < count; i++) {
+            Files.write(dir.resolve("file-" + i + ".dat"), content);
+        }
+    }
+
+    /** Writes a file of {@code size} bytes by repeating one block of random data. */
+    static void writeFile(Path file, long size) throws IOException {
+        byte[] block = new byte[1 << 20];
+        new Random(size).nextBytes(block);
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            while (written < size) {
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - written));
+                while (buffer.hasRemaining()) {
+                    written += out.write(buffer);
+                }
+            }
+        }
+    }
+
+    static void deleteRecursively(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,116 @@
+package rkayyo;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Small requests while bulk transfers keep the peer busy: four clients pull a 16 MB file over and
+ * over while one client times LIST_FILES. Sample mode reports the latency distribution of both,
+ * so the LIST_FILES tail can be compared with and without an upload limit ({@code limit}, bytes
+ * per second as understood by the {@code limit} command).
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class MixedTrafficBenchmark {
+    private static final String PAYLOAD = "payload.bin";
+    private static final long PAYLOAD_SIZE = 16L << 20;
+
+    @State(Scope.Group)
+    public static class Peer {
+        @Param({"false", "true"})
+        boolean mux;
+
+        @Param({"off", "256M"})
+        String limit;
+
+        LoopbackPeer peer;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            Path dir = Files.createTempDirectory("javapeer-mixed");
+            LoopbackPeer.createFiles(dir, 100, 0);
+            LoopbackPeer.writeFile(dir.resolve(PAYLOAD), PAYLOAD_SIZE);
+            peer = LoopbackPeer.start(dir);
+            BandwidthScheduler.UPLOAD.setLimit(BandwidthScheduler.parseRate(limit));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            BandwidthScheduler.UPLOAD.setLimit(0);
+            peer.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        PeerStream stream;
+        Path target;
+        FileChannel out;
+
+        @Setup(Level.Trial)
+        public void setUp(Peer peer) throws IOException {
+            stream = peer.mux ? peer.peer.openStream() : peer.peer.connect();
+            target = Files.createTempFile("javapeer-client", ".bin");
+            out = FileChannel.open(target, StandardOpenOption.WRITE);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            stream.close();
+            out.close();
+            Files.deleteIfExists(target);
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(4)
+    public long bulk(Client client) throws IOException {
+        client.stream.writeLine("REQUEST_FILE " + PAYLOAD);
+        String response = client.stream.readLine();
+        if (response == null || !response.startsWith("APPROVE ")) {
+            throw new IOException("Unexpected reply: " + response);
+        }
+        long length = Long.parseLong(response.split(" ", 3)[1]);
+        client.stream.receiveFile(client.out, 0, length);
+        return length;
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public int listFiles(Client client) throws IOException {
+        client.stream.writeLine("LIST_FILES");
+        int lines = 0;
+        String line;
+        while (!"END".equals(line = client.stream.readLine())) {
+            if (line == null) {
+                throw new IOException("Connection closed before END");
+            }
+            lines++;
+        }
+        return lines;
+    }
+}
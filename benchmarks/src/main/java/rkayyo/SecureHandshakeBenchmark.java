@@ -0,0 +1,69 @@
+package rkayyo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A small request on a fresh connection: connect, LIST_FILES of a few entries, close. Compares a
+ * plain framed connection with an encrypted one that does a full handshake every time and one
+ * that resumes a cached session.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SecureHandshakeBenchmark {
+
+    @Param({"plain", "full", "resumed"})
+    String handshake;
+
+    private LoopbackPeer peer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path dir = Files.createTempDirectory("javapeer-handshake");
+        LoopbackPeer.createFiles(dir, 10, 0);
+        peer = LoopbackPeer.start(dir, !"plain".equals(handshake));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        peer.close();
+    }
+
+    @Benchmark
+    public int connectAndList() throws IOException {
+        if ("full".equals(handshake)) {
+            peer.forgetSessions();
+        }
+        try (PeerConnection conn = peer.connect()) {
+            conn.writeLine("LIST_FILES");
+            int lines = 0;
+            String line;
+            while (!"END".equals(line = conn.readLine())) {
+                if (line == null) {
+                    throw new IOException("Connection closed before END");
+                }
+                lines++;
+            }
+            return lines;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package rkayyo;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One file transfer at a time, pulled with REQUEST_FILE or pushed with OFFER_FILE, either on a
+ * dedicated connection or on a stream of the multiplexed session. Throughput mode reports
+ * transfers and bytes per millisecond; sample mode reports the latency distribution of a whole
+ * transfer. With {@code secure} the connection is encrypted, which shows the cost of the record
+ * layer. Sizes beyond 1 GiB can be added with {@code -p size=4294967296}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransferBenchmark {
+    private static final String PAYLOAD = "payload.bin";
+    private static final String UPLOAD = "upload.bin";
+
+    @Param({"1024", "65536", "1048576", "67108864", "1073741824"})
+    long size;
+
+    @Param({"false", "true"})
+    boolean mux;
+
+    @Param({"false", "true"})
+    boolean secure;
+
+    /** Bytes moved, reported next to the transfer rate. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    private LoopbackPeer peer;
+    private PeerStream stream;
+    private Path scratch;
+    private FileChannel source;
+    private FileChannel target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path dir = Files.createTempDirectory("javapeer-transfer");
+        LoopbackPeer.writeFile(dir.resolve(PAYLOAD), size);
+        scratch = Files.createTempDirectory("javapeer-client");
+        Path upload = scratch.resolve(UPLOAD);
+        LoopbackPeer.writeFile(upload, size);
+        source = FileChannel.open(upload, StandardOpenOption.READ);
+        target = FileChannel.open(scratch.resolve("download.bin"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        peer = LoopbackPeer.start(dir, secure);
+        stream = mux ? peer.openStream() : peer.connect();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        stream.close();
+        source.close();
+        target.close();
+        peer.close();
+        LoopbackPeer.deleteRecursively(scratch);
+    }
+
+    @Benchmark
+    public long requestFile(Bytes bytes) throws IOException {
+        stream.writeLine("REQUEST_FILE " + PAYLOAD);
+        String response = stream.readLine();
+        if (response == null || !response.startsWith("APPROVE ")) {
+            throw new IOException("Unexpected reply: " + response);
+        }
+        long length = Long.parseLong(response.split(" ", 3)[1]);
+        stream.receiveFile(target, 0, length);
+        bytes.bytes += length;
+        return length;
+    }
+
+    @Benchmark
+    public long offerFile(Bytes bytes) throws IOException {
+        stream.writeLine("OFFER_FILE " + size + " " + UPLOAD);
+        String response = stream.readLine();
+        if (response == null || !response.startsWith("ACCEPT ")) {
+            throw new IOException("Unexpected reply: " + response);
+        }
+        long offset = Long.parseLong(response.split(" ", 3)[1]);
+        stream.sendFile(source, offset, size - offset);
+        String ack = stream.readLine();
+        if (ack == null || !ack.startsWith("RECEIVED ")) {
+            throw new IOException("Unexpected reply: " + ack);
+        }
+        bytes.bytes += size - offset;
+        return size - offset;
+    }
+}
@@ -0,0 +1,91 @@
+package rkayyo;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One 64 MB segmented-download range at a time, plain or verified (a hash after every 1 MB chunk,
+ * checked by the receiver as the range arrives), to show what hashing costs on top of the
+ * transfer. The peer keeps the leaves it computed for the first range, so later verified ranges
+ * are hashed on the receiving side only, as for any file that has been served before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class VerifiedRangeBenchmark {
+    private static final String PAYLOAD = "payload.bin";
+    private static final long SIZE = 64L << 20;
+
+    @Param({"false", "true"})
+    boolean verify;
+
+    @Param({"false", "true"})
+    boolean secure;
+
+    private LoopbackPeer peer;
+    private PeerConnection conn;
+    private String token;
+    private Path scratch;
+    private FileChannel target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path dir = Files.createTempDirectory("javapeer-verified");
+        LoopbackPeer.writeFile(dir.resolve(PAYLOAD), SIZE);
+        scratch = Files.createTempDirectory("javapeer-client");
+        target = FileChannel.open(scratch.resolve("download.bin"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        peer = LoopbackPeer.start(dir, secure);
+        conn = peer.connect();
+        conn.writeLine("REQUEST_GRANT_VERIFIED " + PAYLOAD);
+        String response = conn.readLine();
+        if (response == null || !response.startsWith("GRANT ")) {
+            throw new IOException("Unexpected reply: " + response);
+        }
+        token = response.split(" ")[1];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        conn.close();
+        target.close();
+        peer.close();
+        LoopbackPeer.deleteRecursively(scratch);
+    }
+
+    @Benchmark
+    public long range() throws IOException {
+        conn.writeLine("REQUEST_RANGE " + token + " 0 " + SIZE + (verify ? " VERIFY" : ""));
+        String response = conn.readLine();
+        if (response == null || !response.startsWith(verify ? "VERIFIED_RANGE " : "RANGE ")) {
+            throw new IOException("Unexpected reply: " + response);
+        }
+        if (verify) {
+            if (!VerifiedRange.receive(conn, target, 0, SIZE, new MerkleTree(SIZE, 0), null).isEmpty()) {
+                throw new IOException("Corrupt chunks in a loopback transfer");
+            }
+        } else {
+            conn.receiveFile(target, 0, SIZE);
+        }
+        return SIZE;
+    }
+}
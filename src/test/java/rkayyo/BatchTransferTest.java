@@ -0,0 +1,130 @@
+package rkayyo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+@Timeout(30)
+class BatchTransferTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void resolveRejectsAbsoluteNames() {
+        Path root = dir.resolve("shared");
+        for (String name : new String[] {"/etc/passwd", "\\windows\\win.ini", root.resolve("x").toString()}) {
+            assertNull(BatchTransfer.resolve(root, name), name);
+        }
+    }
+
+    @Test
+    void resolveRejectsEscapes() {
+        Path root = dir.resolve("shared");
+        for (String name : new String[] {"..", "../x", "a/../../x", "a/b/../../../x", "a\\..\\..\\x", "a/..", ""}) {
+            assertNull(BatchTransfer.resolve(root, name), name);
+        }
+    }
+
+    @Test
+    void resolveRejectsHiddenNames() {
+        Path root = dir.resolve("shared");
+        for (String name : new String[] {".", ".javapeer/partial/x.part", "a/.hidden", ".git/config", "a\nb"}) {
+            assertNull(BatchTransfer.resolve(root, name), name);
+        }
+    }
+
+    @Test
+    void resolveKeepsNamesInsideTheRoot() {
+        Path root = dir.resolve("shared");
+        assertEquals(root.resolve("a").resolve("b.txt"), BatchTransfer.resolve(root, "a/b.txt"));
+        assertEquals(root.resolve("c.txt"), BatchTransfer.resolve(root, "c.txt"));
+    }
+
+    @Test
+    void malformedManifestEntriesAreRejected() throws Exception {
+        for (String entry : new String[] {"-1 x", "abc x", "12"}) {
+            try (Loopback loopback = new Loopback()) {
+                loopback.server.writeLine(entry);
+                assertThrows(IOException.class, () -> BatchTransfer.readManifest(loopback.client, 1), entry);
+            }
+        }
+    }
+
+    @Test
+    void receiveRefusesNamesOutsideTheRoot() throws Exception {
+        Path root = Files.createDirectories(dir.resolve("received"));
+        List<BatchTransfer.Item> items = List.of(new BatchTransfer.Item("../escaped", 3, null));
+        try (Loopback loopback = new Loopback()) {
+            loopback.server.writeLine("abc");
+            assertThrows(IOException.class,
+                    () -> BatchTransfer.receive(loopback.client, items, root, dir.resolve("staging")));
+        }
+        assertFalse(Files.exists(dir.resolve("escaped")));
+    }
+
+    @Test
+    void packedBatchRoundTrips() throws Exception {
+        Path source = Files.createDirectories(dir.resolve("source"));
+        Random random = new Random(1);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String name = "docs/" + (i % 5) + "/file" + i + ".txt";
+            write(source, name, random.nextInt(5000), random);
+            expected.add(name);
+        }
+        write(source, "docs/empty.txt", 0, random);
+        write(source, "docs/large.bin", 3 * BatchTransfer.SMALL_FILE + 17, random);
+        write(source, "docs/.hidden", 10, random);
+        write(source, "docs/.cache/skipped.txt", 10, random);
+        expected.add("docs/empty.txt");
+        expected.add("docs/large.bin");
+
+        List<String> unmatched = new ArrayList<>();
+        List<BatchTransfer.Item> items = BatchTransfer.expand(source, List.of("docs", "missing*"), unmatched);
+        assertEquals(List.of("missing*"), unmatched);
+        assertEquals(expected.stream().sorted().toList(), items.stream().map(item -> item.name).toList());
+
+        Path target = Files.createDirectories(dir.resolve("target"));
+        long received;
+        try (Loopback loopback = new Loopback()) {
+            CompletableFuture<Void> sender = CompletableFuture.runAsync(() -> {
+                try {
+                    BatchTransfer.writeManifest(loopback.server, items);
+                    BatchTransfer.send(loopback.server, items);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            List<BatchTransfer.Item> manifest = BatchTransfer.readManifest(loopback.client, items.size());
+            received = BatchTransfer.receive(loopback.client, manifest, target, dir.resolve("staging"));
+            sender.join();
+        }
+
+        assertEquals(BatchTransfer.totalSize(items), received);
+        for (String name : expected) {
+            assertArrayEquals(Files.readAllBytes(source.resolve(name)), Files.readAllBytes(target.resolve(name)), name);
+        }
+        assertFalse(Files.exists(target.resolve("docs/.hidden")));
+    }
+
+    private static void write(Path root, String name, int size, Random random) throws IOException {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        Path path = root.resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.write(path, data);
+    }
+}
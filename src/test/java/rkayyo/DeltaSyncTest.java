@@ -0,0 +1,138 @@
+package rkayyo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+@Timeout(30)
+class DeltaSyncTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void insertionReusesTheBlocksAroundIt() throws Exception {
+        byte[] basis = random(1_000_000, 1);
+        byte[] inserted = random(100, 2);
+        byte[] updated = new byte[basis.length + inserted.length];
+        System.arraycopy(basis, 0, updated, 0, 300_000);
+        System.arraycopy(inserted, 0, updated, 300_000, inserted.length);
+        System.arraycopy(basis, 300_000, updated, 300_000 + inserted.length, basis.length - 300_000);
+
+        DeltaSync.Stats stats = sync(basis, updated);
+        int blockSize = DeltaSync.blockSizeFor(basis.length);
+        assertTrue(stats.literalBytes <= inserted.length + 2L * blockSize, "literal bytes: " + stats.literalBytes);
+        assertEquals(updated.length, stats.literalBytes + stats.copiedBytes);
+    }
+
+    @Test
+    void deletionReusesTheBlocksAroundIt() throws Exception {
+        byte[] basis = random(1_000_000, 3);
+        byte[] updated = new byte[basis.length - 5000];
+        System.arraycopy(basis, 0, updated, 0, 600_000);
+        System.arraycopy(basis, 605_000, updated, 600_000, basis.length - 605_000);
+
+        DeltaSync.Stats stats = sync(basis, updated);
+        assertTrue(stats.literalBytes <= 2L * DeltaSync.blockSizeFor(basis.length), "literal bytes: " + stats.literalBytes);
+        assertEquals(updated.length, stats.literalBytes + stats.copiedBytes);
+    }
+
+    @Test
+    void withoutBasisEverythingIsLiteral() throws Exception {
+        byte[] updated = random(50_000, 4);
+        DeltaSync.Stats stats = sync(null, updated);
+        assertEquals(updated.length, stats.literalBytes);
+        assertEquals(0, stats.copiedBytes);
+    }
+
+    @Test
+    void hostileSignatureHeadersAreRejected() throws Exception {
+        for (String header : new String[] {"SIGNATURE 2048 4398046509056 2147483647", "SIGNATURE 2048 -1 0",
+                "SIGNATURE x 2048 1", "SIGNATURE 2048 4096 2 extra"}) {
+            try (Loopback loopback = new Loopback()) {
+                loopback.server.writeLine(header);
+                assertThrows(IOException.class, () -> DeltaSync.readSignature(loopback.client), header);
+            }
+        }
+    }
+
+    @Test
+    void malformedSignatureLineIsRejected() throws Exception {
+        try (Loopback loopback = new Loopback()) {
+            loopback.server.writeLine("SIGNATURE 2048 100 1");
+            loopback.server.writeLine("zzzzzzzz 00112233445566778899aabbccddeeff");
+            assertThrows(IOException.class, () -> DeltaSync.readSignature(loopback.client));
+        }
+    }
+
+    @Test
+    void hostileDeltaInstructionsAreRejected() throws Exception {
+        Path basisFile = Files.write(dir.resolve("basis"), random(10_000, 5));
+        for (String instruction : new String[] {"DATA -5", "DATA x", "COPY 1 2147483647", "COPY -1 1", "COPY a b", "END x 00"}) {
+            try (Loopback loopback = new Loopback();
+                 FileChannel basis = FileChannel.open(basisFile, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(dir.resolve("rebuilt"), StandardOpenOption.CREATE,
+                         StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                CompletableFuture<DeltaSync.Signature> signature = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return DeltaSync.readSignature(loopback.server);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                DeltaSync.Signature sent = DeltaSync.writeSignature(loopback.client, basis);
+                signature.join();
+                loopback.server.writeLine(instruction);
+                assertThrows(IOException.class, () -> DeltaSync.applyDelta(loopback.client, basis, sent, out), instruction);
+            }
+        }
+    }
+
+    /**
+     * Syncs {@code updated} onto a copy of {@code basis} (none if null) the way sync does: the
+     * basis side sends its signature over the client end and rebuilds the file from the delta.
+     */
+    private DeltaSync.Stats sync(byte[] basis, byte[] updated) throws Exception {
+        Path source = Files.write(dir.resolve("updated"), updated);
+        Path basisFile = basis == null ? null : Files.write(dir.resolve("basis"), basis);
+        Path out = dir.resolve("rebuilt");
+        DeltaSync.Stats received;
+        try (Loopback loopback = new Loopback();
+             FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel basisChannel = basisFile == null ? null : FileChannel.open(basisFile, StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE)) {
+            CompletableFuture<DeltaSync.Stats> sender = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return DeltaSync.writeDelta(loopback.server, sourceChannel, DeltaSync.readSignature(loopback.server));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            DeltaSync.Signature signature = DeltaSync.writeSignature(loopback.client, basisChannel);
+            received = DeltaSync.applyDelta(loopback.client, basisChannel, signature, outChannel);
+            DeltaSync.Stats sent = sender.join();
+            assertEquals(sent.literalBytes, received.literalBytes);
+            assertEquals(sent.copiedBytes, received.copiedBytes);
+        }
+        assertArrayEquals(updated, Files.readAllBytes(out));
+        return received;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
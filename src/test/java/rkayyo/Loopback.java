@@ -0,0 +1,34 @@
+package rkayyo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/** Both ends of a loopback TCP connection, as raw sockets and as framed {@link PeerConnection}s. */
+final class Loopback implements Closeable {
+    final SocketChannel clientSocket;
+    final SocketChannel serverSocket;
+    final PeerConnection client;
+    final PeerConnection server;
+
+    Loopback() throws IOException {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            clientSocket = SocketChannel.open(listener.getLocalAddress());
+            serverSocket = listener.accept();
+        }
+        client = new PeerConnection(clientSocket);
+        server = new PeerConnection(serverSocket);
+        client.setFramed(true);
+        server.setFramed(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+        server.close();
+    }
+}
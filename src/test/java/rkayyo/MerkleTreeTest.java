@@ -0,0 +1,85 @@
+package rkayyo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MerkleTreeTest {
+    static final int SIZE = 4 * MerkleTree.CHUNK_SIZE + 12345;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void rootIsUnknownUntilEveryLeafIs() {
+        MerkleTree tree = new MerkleTree(SIZE, 0);
+        assertEquals(5, tree.chunkCount());
+        for (int chunk = 0; chunk < tree.chunkCount() - 1; chunk++) {
+            tree.setLeaf(chunk, MerkleTree.hashChunk(ByteBuffer.wrap(new byte[] {(byte) chunk})));
+        }
+        assertNull(tree.root());
+        assertEquals("-", tree.rootHex());
+        assertNull(tree.leafBytes());
+        tree.setLeaf(4, MerkleTree.hashChunk(ByteBuffer.wrap(new byte[] {4})));
+        assertTrue(tree.isComplete());
+        assertArrayEquals(tree.root(), MerkleTree.fromHex(tree.rootHex()));
+    }
+
+    @Test
+    void oneCorruptChunkChangesOnlyItsLeafAndTheRoot() throws IOException {
+        byte[] data = content(1);
+        MerkleTree good = treeOf(data);
+        data[2 * MerkleTree.CHUNK_SIZE + 100] ^= 1;
+        MerkleTree corrupt = treeOf(data);
+
+        for (int chunk = 0; chunk < good.chunkCount(); chunk++) {
+            assertEquals(chunk != 2, MerkleTree.matches(good.leaf(chunk), corrupt.leaf(chunk)), "leaf " + chunk);
+        }
+        assertFalse(MerkleTree.matches(good.root(), corrupt.root()));
+    }
+
+    @Test
+    void leavesRebuildTheSameRoot() throws IOException {
+        MerkleTree tree = treeOf(content(2));
+        byte[] leaves = tree.leafBytes();
+        assertEquals(tree.chunkCount() * MerkleTree.HASH_SIZE, leaves.length);
+
+        MerkleTree copy = new MerkleTree(SIZE, 0);
+        ByteBuffer buffer = ByteBuffer.wrap(leaves);
+        for (int chunk = 0; chunk < copy.chunkCount(); chunk++) {
+            byte[] leaf = new byte[MerkleTree.HASH_SIZE];
+            buffer.get(leaf);
+            copy.setLeaf(chunk, leaf);
+        }
+        assertNotNull(copy.root());
+        assertArrayEquals(tree.root(), copy.root());
+    }
+
+    static byte[] content(long seed) {
+        byte[] data = new byte[SIZE];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private MerkleTree treeOf(byte[] data) throws IOException {
+        Path file = Files.write(dir.resolve("file"), data);
+        MerkleTree tree = new MerkleTree(data.length, 0);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            VerifiedRange.fillIn(channel, tree);
+        }
+        return tree;
+    }
+}
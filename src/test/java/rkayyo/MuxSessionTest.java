@@ -0,0 +1,111 @@
+package rkayyo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+@Timeout(30)
+class MuxSessionTest {
+    private Loopback loopback;
+    private MuxSession client;
+    private MuxSession server;
+    private final BlockingQueue<PeerStream> accepted = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    void openSessions() throws Exception {
+        loopback = new Loopback();
+        server = new MuxSession(loopback.server, accepted::add);
+        Thread reader = new Thread(server::run, "test-mux-server");
+        reader.setDaemon(true);
+        reader.start();
+        client = new MuxSession(loopback.client, null);
+        client.start();
+    }
+
+    @AfterEach
+    void closeSessions() {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void writerStopsAtTheWindowUntilTheReaderConsumes() throws Exception {
+        byte[] payload = new byte[2 * MuxSession.WINDOW_SIZE + 12345];
+        new Random(1).nextBytes(payload);
+        PeerStream stream = client.openStream();
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try {
+                stream.write(ByteBuffer.wrap(payload));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        PeerStream remote = accepted.take();
+        Thread.sleep(500);
+        assertFalse(writer.isDone(), "writer should be waiting for credit");
+
+        ByteBuffer received = ByteBuffer.allocate(payload.length);
+        remote.readFully(received);
+        writer.get(10, TimeUnit.SECONDS);
+        assertArrayEquals(payload, received.array());
+    }
+
+    @Test
+    void stalledStreamDoesNotHoldUpOthers() throws Exception {
+        PeerStream bulk = client.openStream();
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try {
+                bulk.write(ByteBuffer.allocate(2 * MuxSession.WINDOW_SIZE));
+            } catch (Exception e) {
+                // Fails once the session is closed at the end of the test.
+            }
+        });
+        accepted.take();
+        Thread.sleep(500);
+        assertFalse(writer.isDone(), "bulk writer should be waiting for credit");
+
+        PeerStream request = client.openStream();
+        request.writeLine("PING");
+        PeerStream remote = accepted.take();
+        assertEquals("PING", remote.readLine());
+        remote.writeLine("PONG");
+        assertEquals("PONG", request.readLine());
+    }
+
+    @Test
+    void peerIgnoringTheWindowLosesTheSession() throws Exception {
+        ByteBuffer frame = ByteBuffer.allocate(9 + 256 * 1024);
+        for (int sent = 0; sent <= MuxSession.WINDOW_SIZE && server.isOpen(); sent += 256 * 1024) {
+            frame.clear();
+            frame.putInt(1).put((byte) 0).putInt(256 * 1024).position(frame.capacity()).flip();
+            while (frame.hasRemaining()) {
+                loopback.clientSocket.write(frame);
+            }
+        }
+        for (int i = 0; i < 100 && server.isOpen(); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(server.isOpen());
+    }
+
+    @Test
+    void lineLongerThanTheLimitIsRejected() throws Exception {
+        PeerStream stream = client.openStream();
+        stream.write(ByteBuffer.allocate(PeerConnection.MAX_LINE_LENGTH + 1));
+        PeerStream remote = accepted.take();
+        assertThrows(IOException.class, remote::readLine);
+    }
+}
@@ -0,0 +1,127 @@
+package rkayyo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Records sealed by one channel are captured off the wire and handed, as is or tampered with, to
+ * a channel with the matching keys, the way {@link PeerConnection#secure} hands over bytes read
+ * ahead of the switch.
+ */
+@Timeout(30)
+class SecureChannelTest {
+    private static final int RECORD_OVERHEAD = 4 + 16;
+
+    private final byte[] keyA = new byte[16];
+    private final byte[] ivA = new byte[12];
+    private final byte[] keyB = new byte[16];
+    private final byte[] ivB = new byte[12];
+    private Loopback loopback;
+    private SecureChannel sender;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(keyA);
+        random.nextBytes(ivA);
+        random.nextBytes(keyB);
+        random.nextBytes(ivB);
+        loopback = new Loopback();
+        sender = new SecureChannel(loopback.clientSocket, counters(), keyA, ivA, keyB, ivB, ByteBuffer.allocate(0));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        loopback.close();
+    }
+
+    @Test
+    void recordsRoundTrip() throws IOException {
+        byte[] first = seal("first");
+        byte[] second = seal("second");
+        SecureChannel receiver = receiver(concat(first, second));
+        assertEquals("first", read(receiver, 5));
+        assertEquals("second", read(receiver, 6));
+    }
+
+    @Test
+    void tamperedRecordFailsAuthentication() throws IOException {
+        byte[] record = seal("hello");
+        record[6] ^= 1;
+        SecureChannel receiver = receiver(record);
+        assertThrows(IOException.class, () -> read(receiver, 5));
+    }
+
+    @Test
+    void tamperedLengthFailsAuthentication() throws IOException {
+        byte[] record = seal("hello");
+        record[3] = 4;
+        SecureChannel receiver = receiver(concat(record, new byte[1]));
+        assertThrows(IOException.class, () -> read(receiver, 4));
+    }
+
+    @Test
+    void replayedRecordIsRejected() throws IOException {
+        byte[] record = seal("hello");
+        SecureChannel receiver = receiver(concat(record, record));
+        assertEquals("hello", read(receiver, 5));
+        assertThrows(IOException.class, () -> read(receiver, 5));
+    }
+
+    @Test
+    void reorderedRecordsAreRejected() throws IOException {
+        byte[] first = seal("first");
+        byte[] second = seal("later");
+        SecureChannel receiver = receiver(concat(second, first));
+        assertThrows(IOException.class, () -> read(receiver, 5));
+    }
+
+    /** Seals {@code text} as one record and returns it as it went over the wire. */
+    private byte[] seal(String text) throws IOException {
+        byte[] plain = text.getBytes(StandardCharsets.UTF_8);
+        sender.write(ByteBuffer.wrap(plain));
+        ByteBuffer wire = ByteBuffer.allocate(plain.length + RECORD_OVERHEAD);
+        while (wire.hasRemaining()) {
+            if (loopback.serverSocket.read(wire) < 0) {
+                throw new IOException("Connection closed");
+            }
+        }
+        return wire.array();
+    }
+
+    /** A channel with the sender's keys swapped that reads {@code wire} and then end of stream. */
+    private SecureChannel receiver(byte[] wire) throws IOException {
+        loopback.clientSocket.shutdownOutput();
+        return new SecureChannel(loopback.serverSocket, counters(), keyB, ivB, keyA, ivA, ByteBuffer.wrap(wire));
+    }
+
+    private static String read(SecureChannel channel, int length) throws IOException {
+        ByteBuffer target = ByteBuffer.allocate(length);
+        while (target.hasRemaining()) {
+            if (channel.read(target) < 0) {
+                throw new IOException("End of stream");
+            }
+        }
+        return new String(target.array(), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = new byte[first.length + second.length];
+        System.arraycopy(first, 0, joined, 0, first.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+
+    private PeerMetrics.PeerCounters counters() {
+        return PeerMetrics.GLOBAL.peer(loopback.serverSocket.socket().getInetAddress());
+    }
+}
@@ -0,0 +1,113 @@
+package rkayyo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Changes are fed in with {@link SharedIndex#refresh}, as the watcher would, so versions are deterministic. */
+class SharedIndexTest {
+    @TempDir
+    Path dir;
+
+    private SharedIndex index;
+    private long before;
+
+    @BeforeEach
+    void indexTwoFiles() throws IOException {
+        index = new SharedIndex(dir);
+        write("a.txt", 10);
+        write("b.txt", 20);
+        before = index.version();
+    }
+
+    @Test
+    void deltaHasCreatedModifiedAndDeletedFilesInVersionOrder() throws IOException {
+        write("a.txt", 11);
+        write("c.txt", 30);
+        Files.delete(dir.resolve("b.txt"));
+        index.refresh("b.txt");
+
+        SharedIndex.Changes changes = index.changesSince(index.epoch(), before);
+        assertFalse(changes.full);
+        assertEquals(before + 3, changes.version);
+        assertEquals(List.of("a.txt", "c.txt", "b.txt"), names(changes.entries));
+        assertEquals(11, changes.entries.get(0).size);
+        assertFalse(changes.entries.get(1).deleted);
+        assertTrue(changes.entries.get(2).deleted);
+        assertEquals(List.of("a.txt", "c.txt"), names(index.snapshot()));
+    }
+
+    @Test
+    void unchangedFileIsNotAChange() throws IOException {
+        index.refresh("a.txt");
+        index.refresh(".hidden");
+        SharedIndex.Changes changes = index.changesSince(index.epoch(), before);
+        assertFalse(changes.full);
+        assertEquals(before, changes.version);
+        assertTrue(changes.entries.isEmpty());
+    }
+
+    @Test
+    void recreatedFileReplacesItsTombstone() throws IOException {
+        Files.delete(dir.resolve("a.txt"));
+        index.refresh("a.txt");
+        long deleted = index.version();
+        write("a.txt", 5);
+
+        SharedIndex.Changes changes = index.changesSince(index.epoch(), deleted);
+        assertEquals(List.of("a.txt"), names(changes.entries));
+        assertFalse(changes.entries.get(0).deleted);
+    }
+
+    @Test
+    void versionFromAnotherEpochGetsTheFullListing() throws IOException {
+        write("c.txt", 30);
+        Files.delete(dir.resolve("b.txt"));
+        index.refresh("b.txt");
+
+        SharedIndex.Changes changes = index.changesSince("0123456789abcdef", before);
+        assertTrue(changes.full);
+        assertEquals(index.version(), changes.version);
+        assertEquals(List.of("a.txt", "c.txt"), names(changes.entries));
+
+        SharedIndex restarted = new SharedIndex(dir);
+        restarted.refresh("a.txt");
+        assertTrue(restarted.changesSince(index.epoch(), 1).full);
+    }
+
+    @Test
+    void versionFromTheFutureGetsTheFullListing() {
+        SharedIndex.Changes changes = index.changesSince(index.epoch(), before + 5);
+        assertTrue(changes.full);
+        assertEquals(before, changes.version);
+        assertEquals(List.of("a.txt", "b.txt"), names(changes.entries));
+    }
+
+    @Test
+    void noVersionGetsTheFullListing() {
+        assertTrue(index.changesSince(null, 0).full);
+        assertTrue(index.changesSince(index.epoch(), 0).full);
+    }
+
+    private void write(String name, int size) throws IOException {
+        Files.write(dir.resolve(name), new byte[size]);
+        index.refresh(name);
+    }
+
+    private static List<String> names(List<SharedIndex.Entry> entries) {
+        List<String> names = new ArrayList<>();
+        for (SharedIndex.Entry entry : entries) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,117 @@
+package rkayyo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TransferJournalTest {
+    private static final long SIZE = 3500;
+    private static final long SEGMENT = 1000;
+
+    @TempDir
+    Path dir;
+
+    private final byte[] content = new byte[(int) SIZE];
+
+    TransferJournalTest() {
+        new Random(1).nextBytes(content);
+    }
+
+    @Test
+    void reopenKeepsJournaledSegmentsAndRefetchesThePartialOne() throws IOException {
+        try (TransferJournal journal = TransferJournal.open(dir, "file", SIZE, SEGMENT, "modified 1")) {
+            writeSegment(journal, 0, SEGMENT);
+            journal.markDone(0);
+            writeSegment(journal, 2, SEGMENT);
+            journal.markDone(2);
+            writeSegment(journal, 1, SEGMENT / 2);
+        }
+
+        try (TransferJournal journal = TransferJournal.open(dir, "file", SIZE, SEGMENT, "modified 1")) {
+            assertEquals(4, journal.segmentCount());
+            assertEquals(2, journal.completedSegments());
+            assertTrue(journal.isDone(0));
+            assertFalse(journal.isDone(1));
+            assertTrue(journal.isDone(2));
+            assertFalse(journal.isDone(3));
+            assertEquals(SEGMENT, journal.verifiedOffset());
+            assertArrayEquals(segment(0, SEGMENT), readSegment(journal, 0));
+            assertArrayEquals(segment(2, SEGMENT), readSegment(journal, 2));
+        }
+    }
+
+    @Test
+    void tornLastLineIsIgnored() throws IOException {
+        try (TransferJournal journal = TransferJournal.open(dir, "file", SIZE, SEGMENT, null)) {
+            writeSegment(journal, 0, SEGMENT);
+            journal.markDone(0);
+        }
+        Files.write(dir.resolve("file.journal"), "done 3".getBytes(), StandardOpenOption.APPEND);
+
+        try (TransferJournal journal = TransferJournal.open(dir, "file", SIZE, SEGMENT, null)) {
+            assertTrue(journal.isDone(0));
+            assertFalse(journal.isDone(3));
+        }
+    }
+
+    @Test
+    void progressForAnotherVersionIsDropped() throws IOException {
+        try (TransferJournal journal = TransferJournal.open(dir, "file", SIZE, SEGMENT, "modified 1")) {
+            writeSegment(journal, 0, SEGMENT);
+            journal.markDone(0);
+        }
+
+        try (TransferJournal journal = TransferJournal.open(dir, "file", SIZE, SEGMENT, "modified 2")) {
+            assertEquals(0, journal.completedSegments());
+            assertArrayEquals(new byte[(int) SEGMENT], readSegment(journal, 0));
+        }
+    }
+
+    @Test
+    void completeMovesThePartFileIntoPlace() throws IOException {
+        Path target = dir.resolve("done");
+        TransferJournal journal = TransferJournal.open(dir, "file", SIZE, SEGMENT, null);
+        for (int i = 0; i < journal.segmentCount(); i++) {
+            assertThrows(IOException.class, () -> journal.complete(target));
+            writeSegment(journal, i, SEGMENT);
+            journal.markDone(i);
+        }
+        journal.complete(target);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertFalse(Files.exists(dir.resolve("file.part")));
+        assertFalse(Files.exists(dir.resolve("file.journal")));
+    }
+
+    private byte[] segment(int index, long length) {
+        int start = (int) (index * SEGMENT);
+        return Arrays.copyOfRange(content, start, (int) Math.min(SIZE, start + length));
+    }
+
+    private void writeSegment(TransferJournal journal, int index, long length) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(segment(index, length));
+        while (data.hasRemaining()) {
+            journal.data().write(data, index * SEGMENT + data.position());
+        }
+    }
+
+    private byte[] readSegment(TransferJournal journal, int index) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(SEGMENT, SIZE - index * SEGMENT));
+        while (data.hasRemaining() && journal.data().read(data, index * SEGMENT + data.position()) > 0) {
+            // Read the whole segment.
+        }
+        return data.array();
+    }
+}
@@ -0,0 +1,88 @@
+package rkayyo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+@Timeout(30)
+class VerifiedRangeTest {
+    private static final int SIZE = MerkleTreeTest.SIZE;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void chunkThatDoesNotMatchItsExpectedLeafIsLeftUnwritten() throws Exception {
+        byte[] good = MerkleTreeTest.content(1);
+        byte[] served = good.clone();
+        served[2 * MerkleTree.CHUNK_SIZE + 7] ^= 1;
+        MerkleTree expected = new MerkleTree(SIZE, 0);
+        try (FileChannel channel = FileChannel.open(Files.write(dir.resolve("good"), good), StandardOpenOption.READ)) {
+            VerifiedRange.fillIn(channel, expected);
+        }
+
+        // The sender hashes what it serves, so the corrupt chunk's trailer matches it.
+        MerkleTree received = new MerkleTree(SIZE, 0);
+        List<Integer> corrupt = transfer(served, new MerkleTree(SIZE, 0), received, expected);
+
+        assertEquals(List.of(2), corrupt);
+        assertNull(received.leaf(2));
+        byte[] out = Files.readAllBytes(dir.resolve("out"));
+        for (int chunk = 0; chunk < received.chunkCount(); chunk++) {
+            int from = (int) MerkleTree.chunkOffset(chunk);
+            int to = (int) (from + received.chunkLength(chunk));
+            byte[] want = chunk == 2 ? new byte[to - from] : Arrays.copyOfRange(good, from, to);
+            assertArrayEquals(want, Arrays.copyOfRange(out, from, to), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void chunkThatDoesNotMatchItsTrailerIsLeftUnwritten() throws Exception {
+        byte[] data = MerkleTreeTest.content(2);
+        MerkleTree cached = new MerkleTree(SIZE, 0);
+        try (FileChannel channel = FileChannel.open(Files.write(dir.resolve("served"), data), StandardOpenOption.READ)) {
+            VerifiedRange.fillIn(channel, cached);
+        }
+        cached.setLeaf(1, new byte[MerkleTree.HASH_SIZE]);
+
+        MerkleTree received = new MerkleTree(SIZE, 0);
+        assertEquals(List.of(1), transfer(data, cached, received, null));
+        assertNull(received.leaf(1));
+        assertArrayEquals(cached.leaf(3), received.leaf(3));
+    }
+
+    /** Sends all of {@code served} as a verified range over loopback and returns the chunks the receiver rejected. */
+    private List<Integer> transfer(byte[] served, MerkleTree senderTree, MerkleTree received, MerkleTree expected)
+            throws Exception {
+        Path source = Files.write(dir.resolve("served"), served);
+        try (Loopback loopback = new Loopback();
+             FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dir.resolve("out"), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE)) {
+            out.truncate(0);
+            out.write(ByteBuffer.allocate(SIZE), 0);
+            CompletableFuture<Void> sender = CompletableFuture.runAsync(() -> {
+                try {
+                    VerifiedRange.send(loopback.server, in, 0, SIZE, senderTree);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            List<Integer> corrupt = VerifiedRange.receive(loopback.client, out, 0, SIZE, received, expected);
+            sender.join();
+            return corrupt;
+        }
+    }
+}